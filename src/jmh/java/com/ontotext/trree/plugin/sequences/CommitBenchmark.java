@@ -0,0 +1,80 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Cost of committing a transaction that used some of the sequences: the prepare/commit lifecycle, collecting the
+ * changes, recording them in the history and appending them to the state log.
+ */
+@State(Scope.Thread)
+public class CommitBenchmark {
+    @Param({"10000", "1000000"})
+    public int sequenceCount;
+
+    @Param({"1", "100"})
+    public int touchedCount;
+
+    private final LongFunction<String> iriResolver = id -> "urn:seq" + id;
+
+    private Path directory;
+    private SequenceStore sequences;
+    private TouchedSequences touchedSequences;
+    private FingerprintedSequences fingerprintedSequences;
+    private StateLog stateLog;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sequences-benchmark");
+        sequences = new SequenceStore(sequenceCount);
+        for (int i = 1; i <= sequenceCount; i++) {
+            sequences.add(i, Fingerprints.ofIRI(iriResolver.apply(i)), 0);
+        }
+        touchedSequences = new TouchedSequences(sequences);
+        fingerprintedSequences = new FingerprintedSequences();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpLog() throws IOException {
+        stateLog = new StateLog(directory.resolve("state.log"));
+        stateLog.truncate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stateLog.truncate();
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public long commit() throws IOException {
+        for (int i = 0; i < touchedCount; i++) {
+            int slot = sequences.slot(1 + (long) i * (sequenceCount / touchedCount));
+            sequences.nextValue(slot);
+            touchedSequences.increment(slot);
+        }
+
+        touchedSequences.prepare();
+        long fingerprint = sequences.fingerprint();
+        Map<String, Long> changes = new HashMap<>();
+        Map<String, Long> previousValues = new HashMap<>();
+        touchedSequences.collectChanges(iriResolver, changes, previousValues);
+        long previousFingerprint = fingerprintedSequences.getFingerprint();
+        fingerprintedSequences.add(fingerprint, previousValues);
+        stateLog.append(previousFingerprint, fingerprint, changes);
+        touchedSequences.commit();
+        return fingerprint;
+    }
+}
@@ -0,0 +1,46 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.config.RepositoryConfig;
+import org.eclipse.rdf4j.repository.manager.LocalRepositoryManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * An embedded repository configured like the functional tests, in a temporary directory that is deleted when the
+ * repository is closed.
+ */
+final class EmbeddedRepository implements Closeable {
+    private final Path directory;
+    private final LocalRepositoryManager repositoryManager;
+    private final Repository repository;
+
+    EmbeddedRepository() throws IOException {
+        directory = Files.createTempDirectory("sequences-benchmark");
+        SequencesFunctionalTestBase.setWorkDir(directory.resolve("work").toString());
+
+        RepositoryConfig repositoryConfig = SequencesFunctionalTestBase.repositoryConfiguration();
+        repositoryManager = new LocalRepositoryManager(directory.resolve("repositories").toFile());
+        repositoryManager.init();
+        repositoryManager.addRepositoryConfig(repositoryConfig);
+        repository = repositoryManager.getRepository(repositoryConfig.getID());
+    }
+
+    Repository getRepository() {
+        return repository;
+    }
+
+    @Override
+    public void close() throws IOException {
+        repositoryManager.shutDown();
+        SequencesFunctionalTestBase.resetWorkDir();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
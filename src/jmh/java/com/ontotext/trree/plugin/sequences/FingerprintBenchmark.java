@@ -0,0 +1,57 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of computing the fingerprint at commit, which is what GraphDB asks for via getFingerprint() after every
+ * transaction, and of computing it from scratch, which is what restoring the sequences costs.
+ */
+@State(Scope.Thread)
+public class FingerprintBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int sequenceCount;
+
+    private SequenceStore sequences;
+    private TouchedSequences touchedSequences;
+    private long[] iriHashes;
+    private long nextId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sequences = new SequenceStore(sequenceCount);
+        iriHashes = new long[sequenceCount];
+        for (int i = 0; i < sequenceCount; i++) {
+            iriHashes[i] = Fingerprints.ofIRI("urn:seq" + i);
+            sequences.add(i + 1, iriHashes[i], 0);
+        }
+        touchedSequences = new TouchedSequences(sequences);
+    }
+
+    /**
+     * A transaction that incremented one sequence
+     */
+    @Benchmark
+    public long fingerprintAfterCommit() {
+        int slot = sequences.slot(1 + nextId++ % sequenceCount);
+        sequences.nextValue(slot);
+        touchedSequences.increment(slot);
+        touchedSequences.prepare();
+        long fingerprint = sequences.fingerprint();
+        touchedSequences.commit();
+        return fingerprint;
+    }
+
+    @Benchmark
+    public long fingerprintFromScratch() {
+        long fingerprint = 0;
+        for (int i = 0; i < sequenceCount; i++) {
+            fingerprint += Fingerprints.ofSequence(iriHashes[i], i);
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,45 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of obtaining values from a single sequence, i.e. the work done by the plugin for each seq:nextValue
+ * apart from the query engine itself.
+ */
+@State(Scope.Thread)
+public class NextValueBenchmark {
+    /**
+     * The cache size of the sequence, 0 for a sequence that is not cached
+     */
+    @Param({"0", "1000"})
+    public int cacheSize;
+
+    private SequenceStore sequences;
+    private TouchedSequences touchedSequences;
+    private int slot;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        sequences = new SequenceStore();
+        touchedSequences = new TouchedSequences(sequences);
+        slot = sequences.add(1, Fingerprints.ofIRI("urn:seq"), 0);
+        if (cacheSize > 1) {
+            sequences.setOptions(slot, new SequenceOptions(cacheSize));
+        }
+    }
+
+    @Benchmark
+    public long nextValue() {
+        long reservedValue = sequences.currentValue(slot);
+        long value = sequences.nextValue(slot);
+        if (sequences.currentValue(slot) != reservedValue) {
+            touchedSequences.increment(slot);
+        }
+        return value;
+    }
+}
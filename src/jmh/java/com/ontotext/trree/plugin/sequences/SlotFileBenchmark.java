@@ -0,0 +1,85 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * Latency of persisting a transaction that changes a single sequence in place and of loading the state from the slot
+ * file, see {@link SlotFile}. Persisting should not depend on the number of sequences, while
+ * loading reads every sequence from the index and grows with their number.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SlotFileBenchmark {
+    @Param({"10000", "1000000"})
+    public int sequenceCount;
+
+    private final LongFunction<String> iriResolver = id -> "http://example.com/sequences/" + id;
+
+    private Path directory;
+    private SlotFile slotFile;
+    private FingerprintedSequences fingerprintedSequences;
+    private long fingerprint;
+    private long value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sequences-benchmark");
+        SequenceStore sequences = new SequenceStore(sequenceCount);
+        for (int i = 1; i <= sequenceCount; i++) {
+            sequences.add(i, Fingerprints.ofIRI(iriResolver.apply(i)), i);
+        }
+        fingerprintedSequences = new FingerprintedSequences();
+        slotFile = new SlotFile(directory);
+        slotFile.write(sequences, iriResolver, fingerprintedSequences);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        slotFile.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public long commit() throws IOException {
+        String iri = iriResolver.apply(1);
+        Map<String, Long> previousValues = Collections.singletonMap(iri, value);
+        long previousFingerprint = fingerprint++;
+        fingerprintedSequences.add(fingerprint, previousValues);
+        return slotFile.commit(previousFingerprint, fingerprint, Collections.singletonMap(iri, ++value),
+                previousValues, fingerprintedSequences);
+    }
+
+    @Benchmark
+    public Map<String, Long> load() throws IOException {
+        Map<String, Long> storedSequences = new HashMap<>(sequenceCount * 2);
+        try (SlotFile stored = new SlotFile(directory)) {
+            stored.read(storedSequences, new FingerprintedSequences());
+        }
+        return storedSequences;
+    }
+}
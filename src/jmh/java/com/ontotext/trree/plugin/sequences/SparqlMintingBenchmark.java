@@ -0,0 +1,91 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * End-to-end cost of minting IDs with SPARQL updates in an embedded repository configured like the functional tests.
+ * The results are per minted ID.
+ */
+@State(Scope.Benchmark)
+public class SparqlMintingBenchmark {
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String PREPARE = "insert data { [] <http://www.ontotext.com/plugins/sequences#prepare> [] }";
+
+    private static final String MINT_ONE = "insert { ?item <urn:id> ?id } where {"
+            + " <urn:seq> <http://www.ontotext.com/plugins/sequences#nextValue> ?id"
+            + " bind(iri(concat(\"urn:item:\", str(?id))) as ?item) }";
+
+    private static final String MINT_BATCH = "insert { ?item <urn:id> ?id } where {"
+            + " graph <urn:seq> { " + BATCH_SIZE + " <http://www.ontotext.com/plugins/sequences#nextValues> ?id }"
+            + " bind(iri(concat(\"urn:item:\", str(?id))) as ?item) }";
+
+    private static final String MINT_BATCH_IRIS = "insert { ?item a <urn:Item> } where {"
+            + " graph <urn:seq> { " + BATCH_SIZE + " <http://www.ontotext.com/plugins/sequences#nextIRIs> ?item } }";
+
+    private EmbeddedRepository embeddedRepository;
+    private Repository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        embeddedRepository = new EmbeddedRepository();
+        repository = embeddedRepository.getRepository();
+
+        try (RepositoryConnection connection = repository.getConnection()) {
+            connection.begin();
+            connection.prepareUpdate("insert data { <urn:seq> <http://www.ontotext.com/plugins/sequences#create> 1 ;"
+                    + " <http://www.ontotext.com/plugins/sequences#iriPrefix> \"urn:item:\" }").execute();
+            connection.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        embeddedRepository.close();
+    }
+
+    /**
+     * One ID per transaction
+     */
+    @Benchmark
+    public void mintOne() {
+        mint(MINT_ONE);
+    }
+
+    /**
+     * A batch of IDs obtained with seq:nextValues in one transaction
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void mintBatch() {
+        mint(MINT_BATCH);
+    }
+
+    /**
+     * A batch of IRIs minted directly by seq:nextIRIs in one transaction
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void mintBatchIris() {
+        mint(MINT_BATCH_IRIS);
+    }
+
+    private void mint(String update) {
+        try (RepositoryConnection connection = repository.getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(PREPARE).execute();
+            connection.prepareUpdate(update).execute();
+            connection.commit();
+        }
+    }
+}
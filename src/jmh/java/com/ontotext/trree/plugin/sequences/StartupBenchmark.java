@@ -0,0 +1,77 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup time of an embedded repository with many sequences, with eager and lazy binding of the restored sequences
+ * to entity IDs. Only the initialization of the repository is timed; it is shut down before every measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class StartupBenchmark {
+    private static final int SEQUENCES_PER_UPDATE = 10_000;
+
+    @Param({"1000000"})
+    public int sequenceCount;
+
+    @Param({"false", "true"})
+    public boolean lazyBinding;
+
+    private EmbeddedRepository embeddedRepository;
+    private Repository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("graphdb.sequences.lazyBinding", String.valueOf(lazyBinding));
+        embeddedRepository = new EmbeddedRepository();
+        repository = embeddedRepository.getRepository();
+
+        try (RepositoryConnection connection = repository.getConnection()) {
+            connection.begin();
+            for (int i = 0; i < sequenceCount; i += SEQUENCES_PER_UPDATE) {
+                StringBuilder update = new StringBuilder("insert data {");
+                for (int j = i; j < Math.min(i + SEQUENCES_PER_UPDATE, sequenceCount); j++) {
+                    update.append(" <urn:seq").append(j)
+                            .append("> <http://www.ontotext.com/plugins/sequences#create> 1 .");
+                }
+                connection.prepareUpdate(update.append(" }").toString()).execute();
+            }
+            connection.commit();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void shutDown() {
+        repository.shutDown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        embeddedRepository.close();
+        System.clearProperty("graphdb.sequences.lazyBinding");
+    }
+
+    @Benchmark
+    public void init() {
+        repository.init();
+    }
+}
@@ -0,0 +1,107 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * Latency of saving and loading the state: writing and reading a snapshot and replaying the state log. A snapshot is
+ * written either whole or, as when a single sequence changed since the previous one, only in the shard of that sequence.
+ * A snapshot with more than one shard is read in parallel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StateBenchmark {
+    private static final int LOG_RECORDS = 1000;
+
+    @Param({"10000", "1000000"})
+    public int sequenceCount;
+
+    @Param({"1", "16"})
+    public int shardCount;
+
+    private final LongFunction<String> iriResolver = id -> "http://example.com/sequences/" + id;
+
+    private Path directory;
+    private Path snapshotPath;
+    private SequenceStore sequences;
+    private FingerprintedSequences fingerprintedSequences;
+    private StateLog stateLog;
+    private BitSet dirtyShard;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sequences-benchmark");
+        snapshotPath = directory.resolve("state.bin");
+        sequences = new SequenceStore(sequenceCount);
+        for (int i = 1; i <= sequenceCount; i++) {
+            sequences.add(i, Fingerprints.ofIRI(iriResolver.apply(i)), i);
+        }
+        fingerprintedSequences = new FingerprintedSequences();
+        fingerprintedSequences.add(sequences.fingerprint(), new HashMap<>());
+        StateSnapshot.write(snapshotPath, sequences, iriResolver, fingerprintedSequences, shardCount, null);
+        dirtyShard = new BitSet();
+        dirtyShard.set(StateSnapshot.shard(sequences.iriHash(0), shardCount));
+
+        stateLog = new StateLog(directory.resolve("state.log"));
+        for (int i = 0; i < LOG_RECORDS; i++) {
+            Map<String, Long> changes = new HashMap<>();
+            changes.put(iriResolver.apply(1 + i % sequenceCount), (long) i);
+            stateLog.append(i, i + 1, changes);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stateLog.truncate();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public long saveSnapshot() throws IOException {
+        return StateSnapshot.write(snapshotPath, sequences, iriResolver, fingerprintedSequences, shardCount, null);
+    }
+
+    @Benchmark
+    public long saveDirtyShard() throws IOException {
+        return StateSnapshot.write(snapshotPath, sequences, iriResolver, fingerprintedSequences, shardCount,
+                dirtyShard);
+    }
+
+    @Benchmark
+    public Map<String, Long> loadSnapshot() throws IOException {
+        Map<String, Long> storedSequences = new HashMap<>(sequenceCount * 2);
+        StateSnapshot.read(snapshotPath, storedSequences, new FingerprintedSequences());
+        return storedSequences;
+    }
+
+    @Benchmark
+    public int replayLog() throws IOException {
+        int[] records = new int[1];
+        stateLog.replay((previousFingerprint, fingerprint, changes) -> records[0]++);
+        return records[0];
+    }
+}
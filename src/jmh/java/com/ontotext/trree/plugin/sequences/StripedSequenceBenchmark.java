@@ -0,0 +1,60 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of obtaining values from a single striped sequence and a single time-based sequence on many threads,
+ * compared with a single shared counter. Run with different thread counts to see how both scale, e.g. {@code -t 1} and {@code -t 8}.
+ */
+@State(Scope.Benchmark)
+public class StripedSequenceBenchmark {
+    private Path directory;
+    private NonTransactionalSequences.Sequence sequence;
+    private NonTransactionalSequences.Sequence timeBasedSequence;
+    private final AtomicLong counter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sequences-benchmark");
+        NonTransactionalSequences sequences = new NonTransactionalSequences(directory.resolve("striped.js"),
+                new ObjectMapper(), NonTransactionalSequences.DEFAULT_BLOCK_SIZE, 0, System::currentTimeMillis);
+        sequences.createStriped(1, "urn:seq", 0);
+        sequences.createTimeBased(2, "urn:ids");
+        sequences.prepare();
+        sequences.commit();
+        sequence = sequences.get(1);
+        timeBasedSequence = sequences.get(2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory.resolve("striped.js"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long striped() {
+        return sequence.nextValue();
+    }
+
+    @Benchmark
+    public long timeBased() {
+        return timeBasedSequence.nextValue();
+    }
+
+    @Benchmark
+    public long sharedCounter() {
+        return counter.incrementAndGet();
+    }
+}
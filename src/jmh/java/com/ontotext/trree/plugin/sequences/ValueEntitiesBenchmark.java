@@ -0,0 +1,67 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.ontotext.trree.sdk.Entities;
+import org.eclipse.rdf4j.model.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cost of returning sequence values as request-scoped literals with and without the per-request cache of
+ * {@link ValueEntities}. The entity pool is simulated by a hash map, which is cheaper than the real one, so the
+ * results understate the gain.
+ */
+@State(Scope.Thread)
+public class ValueEntitiesBenchmark {
+    /**
+     * The number of times each value is returned, e.g. 1 for seq:nextValue alone and 2 for seq:nextValue followed by
+     * seq:currentValue in the same request
+     */
+    @Param({"1", "2", "10"})
+    public int readsPerValue;
+
+    private Entities entities;
+    private ValueEntities requestContext;
+    private long value;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        Map<Value, Long> ids = new HashMap<>();
+        // Only put() is used; the pool is cleared from time to time as if a new request started
+        entities = (Entities) Proxy.newProxyInstance(Entities.class.getClassLoader(), new Class<?>[] {Entities.class},
+                (proxy, method, args) -> {
+                    if (ids.size() == 1_000_000) {
+                        ids.clear();
+                    }
+                    return ids.computeIfAbsent((Value) args[0], v -> (long) ids.size() + 1);
+                });
+        requestContext = new ValueEntities();
+    }
+
+    @Benchmark
+    public long uncached() {
+        value++;
+        long id = 0;
+        for (int i = 0; i < readsPerValue; i++) {
+            id += ValueEntities.literal(null, entities, value);
+        }
+        return id;
+    }
+
+    @Benchmark
+    public long cached() {
+        value++;
+        long id = 0;
+        for (int i = 0; i < readsPerValue; i++) {
+            id += ValueEntities.literal(requestContext, entities, value);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,79 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.ontotext.trree.sdk.PluginException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The IRI prefixes under which unknown sequences are created on first use, each with the value the created sequences
+ * start from. The rules are given as a comma-separated list of {@code prefix=startValue} entries, where the prefix
+ * {@code *} matches all IRIs, e.g. {@code urn:doc:=1,urn:order:=1000}. The longest matching prefix wins.
+ */
+class AutoCreateRules {
+    static final AutoCreateRules NONE = new AutoCreateRules(new ArrayList<>());
+
+    private static final String ANY_IRI = "*";
+
+    private final List<Rule> rules;
+
+    private static class Rule {
+        final String prefix;
+        final long startValue;
+
+        Rule(String prefix, long startValue) {
+            this.prefix = prefix;
+            this.startValue = startValue;
+        }
+    }
+
+    private AutoCreateRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Parses the rules, see the class description for the format.
+     *
+     * @param value the rules or null if no sequences are created on first use
+     */
+    static AutoCreateRules parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return NONE;
+        }
+
+        List<Rule> rules = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            int separator = entry.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new PluginException("Invalid sequence auto-create rule, expected prefix=startValue: " + entry);
+            }
+            String prefix = entry.substring(0, separator).trim();
+            try {
+                long startValue = Long.parseLong(entry.substring(separator + 1).trim());
+                rules.add(new Rule(ANY_IRI.equals(prefix) ? "" : prefix, startValue));
+            } catch (NumberFormatException e) {
+                throw new PluginException("Invalid sequence auto-create start value: " + entry, e);
+            }
+        }
+        rules.sort(Comparator.comparingInt((Rule rule) -> rule.prefix.length()).reversed());
+        return new AutoCreateRules(rules);
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * Returns the first value of a sequence created on first use, or null if a sequence with the given IRI must be
+     * created explicitly.
+     */
+    Long startValue(String iri) {
+        for (Rule rule : rules) {
+            if (iri.startsWith(rule.prefix)) {
+                return rule.startValue;
+            }
+        }
+        return null;
+    }
+}
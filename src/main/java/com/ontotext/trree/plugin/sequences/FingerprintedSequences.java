@@ -1,35 +1,163 @@
 package com.ontotext.trree.plugin.sequences;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
- * Represents the state of the plugin where a given fingerprint is mapped to a sorted map of sequences.
- * The last 5 fingerprints are kept so that a failed transaction (resulting in a previous fingerprint) can be reverted
- * even after the data is persisted to disk.
+ * Represents the recent states of the plugin, each identified by its fingerprint. The last few fingerprints are kept
+ * so that a failed transaction (resulting in a previous fingerprint) can be reverted even after the data is persisted
+ * to disk.
  *
- * This is identical to a {@link LinkedHashMap} with the following exceptions:
- * - Only at most MAX_FINGERPRINTS_TO_KEEP keys will be kept
- * - Re-adding an existing key affects the order (equivalent to remove() + put())
+ * Only the newest state is kept in full and it is owned by the caller. Every older state is represented by a
+ * {@link Revision} that holds the values to restore in the state that followed it, so the memory used by the history
+ * depends on the number of sequences changed by the recent transactions and not on the total number of sequences.
+ * Past states are rebuilt only on demand via {@link #revert(long, Map)}.
  */
-public class FingerprintedSequences extends LinkedHashMap<Long, TreeMap<String, Sequence>> {
-    private static final int MAX_FINGERPRINTS_TO_KEEP = 5;
+public class FingerprintedSequences {
+    static final int DEFAULT_MAX_FINGERPRINTS_TO_KEEP = 5;
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<Long, TreeMap<String, Sequence>> eldest) {
-        return size() > MAX_FINGERPRINTS_TO_KEEP;
+    private final int maxFingerprintsToKeep;
+
+    private long fingerprint;
+
+    // Newest first
+    private final ArrayDeque<Revision> revisions = new ArrayDeque<>();
+
+    /**
+     * The changes that turn a state back into the state that preceded it.
+     */
+    static class Revision {
+        final long fingerprint;
+        final Map<String, Long> previousValues;
+
+        /**
+         * @param fingerprint    the fingerprint of the preceding state
+         * @param previousValues the values of the changed sequences in the preceding state, null for sequences that
+         *                       did not exist
+         */
+        Revision(long fingerprint, Map<String, Long> previousValues) {
+            this.fingerprint = fingerprint;
+            this.previousValues = previousValues;
+        }
+    }
+
+    public FingerprintedSequences() {
+        this(DEFAULT_MAX_FINGERPRINTS_TO_KEEP);
+    }
+
+    public FingerprintedSequences(int maxFingerprintsToKeep) {
+        if (maxFingerprintsToKeep < 1) {
+            throw new IllegalArgumentException("At least one fingerprint must be kept");
+        }
+        this.maxFingerprintsToKeep = maxFingerprintsToKeep;
+    }
+
+    /**
+     * Returns the fingerprint of the newest state.
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the kept fingerprints, newest first.
+     */
+    List<Long> getFingerprints() {
+        List<Long> fingerprints = new ArrayList<>(revisions.size() + 1);
+        fingerprints.add(fingerprint);
+        revisions.forEach(revision -> fingerprints.add(revision.fingerprint));
+        return fingerprints;
     }
 
-    @Override
-    public TreeMap<String, Sequence> put(Long key, TreeMap<String, Sequence> value) {
-        TreeMap<String, Sequence> previousValue = null;
-        if (containsKey(key)) {
-            previousValue = remove(key);
+    /**
+     * Returns the revisions leading back from the newest state, newest first.
+     */
+    Collection<Revision> getRevisions() {
+        return Collections.unmodifiableCollection(revisions);
+    }
+
+    /**
+     * Records a new newest state. Adding a fingerprint that is already kept makes it refer to the new state.
+     *
+     * @param fingerprint    the fingerprint of the new state
+     * @param previousValues the values of the changed sequences in the previous newest state, null for sequences
+     *                       that did not exist
+     */
+    void add(long fingerprint, Map<String, Long> previousValues) {
+        revisions.addFirst(new Revision(this.fingerprint, previousValues));
+        this.fingerprint = fingerprint;
+        while (revisions.size() >= maxFingerprintsToKeep) {
+            revisions.removeLast();
+        }
+    }
+
+    /**
+     * Replaces the history with the provided one.
+     *
+     * @param fingerprint the fingerprint of the newest state
+     * @param revisions   the revisions leading back from the newest state, newest first
+     */
+    void load(long fingerprint, List<Revision> revisions) {
+        clear();
+        this.fingerprint = fingerprint;
+        for (Revision revision : revisions) {
+            if (this.revisions.size() + 1 >= maxFingerprintsToKeep) {
+                break;
+            }
+            this.revisions.addLast(revision);
+        }
+    }
+
+    /**
+     * Checks if a state with the given fingerprint is kept.
+     */
+    boolean contains(long fingerprint) {
+        if (this.fingerprint == fingerprint) {
+            return true;
+        }
+        for (Revision revision : revisions) {
+            if (revision.fingerprint == fingerprint) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        super.put(key, value);
+    /**
+     * Reverts to the newest kept state with the given fingerprint and forgets all states that followed it.
+     *
+     * @param fingerprint the fingerprint to revert to
+     * @param sequences   the values of the newest state, which will be modified in place into the reverted state,
+     *                    or null if only the history needs to be reverted
+     * @return true if the state was reverted, false if the fingerprint is not kept (nothing is modified in this case)
+     */
+    boolean revert(long fingerprint, Map<String, Long> sequences) {
+        if (!contains(fingerprint)) {
+            return false;
+        }
+
+        while (this.fingerprint != fingerprint) {
+            Revision revision = revisions.removeFirst();
+            if (sequences != null) {
+                revision.previousValues.forEach((iri, value) -> {
+                    if (value == null) {
+                        sequences.remove(iri);
+                    } else {
+                        sequences.put(iri, value);
+                    }
+                });
+            }
+            this.fingerprint = revision.fingerprint;
+        }
+        return true;
+    }
 
-        return previousValue;
+    void clear() {
+        fingerprint = 0;
+        revisions.clear();
     }
 }
@@ -0,0 +1,41 @@
+package com.ontotext.trree.plugin.sequences;
+
+/**
+ * 64-bit hashing used to compute the fingerprint of the sequences.
+ *
+ * The fingerprint of the plugin is the sum of the fingerprints of all sequences. Addition is order-independent and
+ * can be undone, so the fingerprint is updated in constant time whenever a single sequence changes. The hashes must
+ * be identical on every JVM, which is why they do not rely on {@link Object#hashCode()}.
+ */
+final class Fingerprints {
+    private Fingerprints() {
+    }
+
+    /**
+     * Computes the 64-bit hash of a sequence IRI (FNV-1a over the UTF-16 code units, followed by a finalizer).
+     */
+    static long ofIRI(String iri) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < iri.length(); i++) {
+            hash ^= iri.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Computes the fingerprint of a single sequence from the hash of its IRI and its value.
+     */
+    static long ofSequence(long iriHash, long value) {
+        return mix(iriHash ^ mix(value + 0x9e3779b97f4a7c15L));
+    }
+
+    /**
+     * The SplitMix64 finalizer, which spreads every input bit over the whole 64-bit result.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
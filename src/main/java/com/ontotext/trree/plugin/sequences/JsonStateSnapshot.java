@@ -0,0 +1,70 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the JSON snapshot of the plugin state (state.js) written by earlier versions of the plugin, so that it can be
+ * migrated to {@link StateSnapshot}. The snapshot maps each fingerprint to a full copy of the sequences in that state,
+ * oldest first:
+ * <pre>
+ * {fingerprint: {iri: {"value": value}, ...}, ...}
+ * </pre>
+ */
+final class JsonStateSnapshot {
+    private JsonStateSnapshot() {
+    }
+
+    /**
+     * Reads a snapshot, converting it into the newest state and the revisions that lead back to the older ones.
+     *
+     * @param sequences              receives the values of the sequences in the newest state
+     * @param fingerprintedSequences receives the history of the states
+     */
+    static void read(ObjectMapper objectMapper, Path path, Map<String, Long> sequences,
+                     FingerprintedSequences fingerprintedSequences) throws IOException {
+        JsonNode root = objectMapper.readTree(path.toFile());
+        long fingerprint = 0;
+        TreeMap<String, Long> state = new TreeMap<>();
+        List<FingerprintedSequences.Revision> revisions = new ArrayList<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+        boolean first = true;
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            TreeMap<String, Long> nextState = new TreeMap<>();
+            field.getValue().fields().forEachRemaining(sequence ->
+                    nextState.put(sequence.getKey(), sequence.getValue().get("value").asLong()));
+
+            if (!first) {
+                Map<String, Long> previousValues = new HashMap<>();
+                state.forEach((iri, value) -> {
+                    if (!value.equals(nextState.get(iri))) {
+                        previousValues.put(iri, value);
+                    }
+                });
+                nextState.keySet().forEach(iri -> {
+                    if (!state.containsKey(iri)) {
+                        previousValues.put(iri, null);
+                    }
+                });
+                revisions.add(0, new FingerprintedSequences.Revision(fingerprint, previousValues));
+            }
+            first = false;
+            fingerprint = Long.parseLong(field.getKey());
+            state.clear();
+            state.putAll(nextState);
+        }
+
+        sequences.putAll(state);
+        fingerprintedSequences.load(fingerprint, revisions);
+    }
+}
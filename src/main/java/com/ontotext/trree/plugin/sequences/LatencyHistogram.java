@@ -0,0 +1,57 @@
+package com.ontotext.trree.plugin.sequences;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations in buckets by powers of two of microseconds. Percentiles are reported as the upper bound of the
+ * bucket they fall into, so they are accurate within a factor of two, which is enough to tell where time goes.
+ */
+class LatencyHistogram {
+    // Bucket b holds durations in [2^(b-1), 2^b) microseconds, bucket 0 holds durations under a microsecond
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(micros));
+        count.increment();
+        sumMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long meanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : sumMicros.sum() / n;
+    }
+
+    long maxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Returns the upper bound in microseconds of the bucket that holds the given percentile (0-100).
+     */
+    long percentileMicros(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length(); bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) {
+                return Math.min(1L << bucket, maxMicros());
+            }
+        }
+        return maxMicros();
+    }
+}
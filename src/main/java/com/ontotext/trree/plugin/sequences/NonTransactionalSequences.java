@@ -0,0 +1,426 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ontotext.trree.sdk.PluginException;
+import gnu.trove.TLongObjectHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Non-transactional sequences that hand out unique values to any number of concurrent queries, including read-only
+ * ones, without a reset statement or a state write per value. The only persisted state of such a sequence is its
+ * high-water mark, i.e. the largest value that may have been handed out, which is raised well ahead of the values
+ * handed out and persisted (striped.js) before any value past the previous mark. After a restart a sequence continues
+ * after its high-water mark, so no value is handed out twice, but values may be skipped. There are two kinds:
+ * <ul>
+ * <li>striped sequences hand out roughly increasing values. Every thread takes values from a block of its own without
+ * any synchronization and takes the next block from the sequence with a single compare-and-set, and the high-water
+ * mark is raised by several blocks at once, so most blocks are taken without touching the disk;</li>
+ * <li>time-based sequences hand out sortable IDs composed of the time in milliseconds, the node ID and a counter
+ * within the millisecond, like Snowflake IDs. Unlike the values of a striped sequence the IDs are unique across nodes
+ * with different node IDs. The high-water mark is raised a few seconds ahead of the clock, which also guards against
+ * the clock moving back, e.g. across a restart.</li>
+ * </ul>
+ *
+ * Creating and dropping non-transactional sequences is transactional: the changes made by a transaction are persisted
+ * when it commits and take effect once it completes.
+ *
+ * The high-water marks of all sequences are kept in one file, which is rewritten and synced whenever a mark is raised,
+ * under the monitor of the container. Raising the mark of one sequence thus waits for the raises of all others, which
+ * costs in proportion to the number of sequences. Raises are rare though: a busy striped sequence raises its mark once
+ * every {@value #BLOCKS_PER_WRITE} blocks and a time-based one once every {@value #CLOCK_MILLIS_PER_WRITE} ms of the
+ * clock, while the values below the marks are handed out without locking.
+ */
+final class NonTransactionalSequences {
+    static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    // The high-water mark of a striped sequence is raised by this many blocks at once
+    private static final int BLOCKS_PER_WRITE = 16;
+
+    static final int NODE_ID_BITS = 10;
+    static final int MAX_NODE_ID = (1 << NODE_ID_BITS) - 1;
+    private static final int COUNTER_BITS = 12;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final int TIMESTAMP_SHIFT = NODE_ID_BITS + COUNTER_BITS;
+    // 2020-01-01T00:00:00Z, which leaves the 41 bits of the timestamp enough until 2089
+    private static final long EPOCH_MILLIS = 1577836800000L;
+    // The high-water mark of a time-based sequence is raised this far ahead of the clock
+    private static final long CLOCK_MILLIS_PER_WRITE = 10_000;
+
+    private static final String TYPE_FIELD = "type";
+    private static final String HIGH_WATER_MARK_FIELD = "highWaterMark";
+    private static final String TIME_BASED_TYPE = "timeBased";
+
+    private final Path path;
+    private final ObjectMapper objectMapper;
+    private final int blockSize;
+    private final long nodeId;
+    private final LongSupplier clock;
+
+    // The committed sequences by entity ID; replaced rather than changed, so it is read without locking
+    private volatile TLongObjectHashMap<Sequence> sequencesById = new TLongObjectHashMap<>();
+    private final Map<String, Sequence> sequencesByIri = new HashMap<>();
+
+    // The sequences created (mapped to the new sequence) and dropped (mapped to null) by the current transaction
+    private final Map<String, Sequence> changes = new LinkedHashMap<>();
+    private boolean prepared;
+
+    /**
+     * A non-transactional sequence.
+     */
+    abstract class Sequence {
+        final long id;
+        final String iri;
+        private volatile long highWaterMark;
+
+        private Sequence(long id, String iri, long highWaterMark) {
+            this.id = id;
+            this.iri = iri;
+            this.highWaterMark = highWaterMark;
+        }
+
+        abstract long nextValue();
+
+        /**
+         * Returns the first of the given number of consecutive values.
+         */
+        abstract long nextValues(long count);
+
+        /**
+         * Returns the largest value that may have been handed out.
+         */
+        long highWaterMark() {
+            return highWaterMark;
+        }
+
+        /**
+         * Makes sure that the high-water mark is persisted at or after the given value before it is handed out.
+         *
+         * @param highWaterMark the high-water mark to persist if the current one is below the value
+         */
+        void ensureHighWaterMark(long value, long highWaterMark) {
+            if (value > this.highWaterMark) {
+                raiseHighWaterMark(this, value, highWaterMark);
+            }
+        }
+    }
+
+    /**
+     * A sequence that hands out values from a block per thread.
+     */
+    final class StripedSequence extends Sequence {
+        // The last value of the last reserved block
+        private final AtomicLong last;
+        // The last value handed out from the block of the current thread and the last value of that block, which
+        // leaves no value past Long.MAX_VALUE to compute
+        private final ThreadLocal<long[]> block = ThreadLocal.withInitial(() -> new long[2]);
+
+        private StripedSequence(long id, String iri, long highWaterMark) {
+            super(id, iri, highWaterMark);
+            this.last = new AtomicLong(highWaterMark);
+        }
+
+        @Override
+        long nextValue() {
+            long[] block = this.block.get();
+            if (block[0] == block[1]) {
+                block[0] = reserve(blockSize) - 1;
+                block[1] = block[0] + blockSize;
+            }
+            return ++block[0];
+        }
+
+        /**
+         * Returns the first of the given number of consecutive values, which are taken from the block of the current
+         * thread if it has enough of them.
+         */
+        @Override
+        long nextValues(long count) {
+            long[] block = this.block.get();
+            if (block[1] - block[0] >= count) {
+                long first = block[0] + 1;
+                block[0] += count;
+                return first;
+            }
+            return reserve(count);
+        }
+
+        /**
+         * Reserves the given number of values after the last reserved block. The shared counter is advanced only if
+         * all the values exist, so a failed reservation does not affect the other threads.
+         */
+        private long reserve(long count) {
+            long previousLast;
+            long last;
+            do {
+                previousLast = this.last.get();
+                try {
+                    last = Math.addExact(previousLast, count);
+                } catch (ArithmeticException e) {
+                    throw new PluginException("Sequence " + iri + " has no more values");
+                }
+            } while (!this.last.compareAndSet(previousLast, last));
+            long highWaterMark = last + (long) blockSize * (BLOCKS_PER_WRITE - 1);
+            ensureHighWaterMark(last, highWaterMark < last ? Long.MAX_VALUE : highWaterMark);
+            return previousLast + 1;
+        }
+    }
+
+    /**
+     * A sequence that hands out IDs composed of the time in milliseconds since {@link #EPOCH_MILLIS}, the node ID and
+     * a counter. When the counter within a millisecond is exhausted, or the clock is behind the last ID, the IDs
+     * continue with the next millisecond ahead of the clock rather than waiting for it.
+     */
+    final class TimeBasedSequence extends Sequence {
+        private final long nodeBits = nodeId << COUNTER_BITS;
+        private final AtomicLong lastValue;
+
+        private TimeBasedSequence(long id, String iri, long highWaterMark) {
+            super(id, iri, highWaterMark);
+            // The next ID is in the millisecond after the mark, even if the node ID changed
+            this.lastValue = new AtomicLong(highWaterMark & -(1L << TIMESTAMP_SHIFT) | nodeBits | COUNTER_MASK);
+        }
+
+        @Override
+        long nextValue() {
+            long now = (clock.getAsLong() - EPOCH_MILLIS) << TIMESTAMP_SHIFT | nodeBits;
+            long last;
+            long next;
+            do {
+                last = lastValue.get();
+                if (now > last) {
+                    next = now;
+                } else if ((last & COUNTER_MASK) != COUNTER_MASK) {
+                    next = last + 1;
+                } else {
+                    next = (last >>> TIMESTAMP_SHIFT) + 1 << TIMESTAMP_SHIFT | nodeBits;
+                }
+            } while (!lastValue.compareAndSet(last, next));
+            ensureHighWaterMark(next, ((next >>> TIMESTAMP_SHIFT) + CLOCK_MILLIS_PER_WRITE << TIMESTAMP_SHIFT)
+                    | nodeBits | COUNTER_MASK);
+            return next;
+        }
+
+        @Override
+        long nextValues(long count) {
+            throw new PluginException("Time-based sequence " + iri + " hands out one ID at a time");
+        }
+    }
+
+    /**
+     * @param path         the file with the high-water marks
+     * @param objectMapper writes and reads the file
+     * @param blockSize    the number of values a thread takes at once from a striped sequence
+     * @param nodeId       the node ID in the IDs of time-based sequences, up to {@link #MAX_NODE_ID}
+     * @param clock        returns the current time in milliseconds
+     */
+    NonTransactionalSequences(Path path, ObjectMapper objectMapper, int blockSize, int nodeId, LongSupplier clock) {
+        this.path = path;
+        this.objectMapper = objectMapper;
+        this.blockSize = blockSize;
+        this.nodeId = nodeId;
+        this.clock = clock;
+    }
+
+    boolean isEmpty() {
+        return sequencesById.isEmpty();
+    }
+
+    /**
+     * Returns the committed sequence with the given entity ID or null if there is no such sequence.
+     */
+    Sequence get(long id) {
+        return sequencesById.get(id);
+    }
+
+    /**
+     * Checks if a sequence with the given IRI exists, including the changes made by the current transaction.
+     */
+    synchronized boolean exists(String iri) {
+        return changes.containsKey(iri) ? changes.get(iri) != null : sequencesByIri.containsKey(iri);
+    }
+
+    /**
+     * Creates a striped sequence in the current transaction.
+     *
+     * @param value the value before the first value of the sequence
+     */
+    synchronized void createStriped(long id, String iri, long value) {
+        changes.put(iri, new StripedSequence(id, iri, value));
+    }
+
+    /**
+     * Creates a time-based sequence in the current transaction.
+     */
+    synchronized void createTimeBased(long id, String iri) {
+        changes.put(iri, new TimeBasedSequence(id, iri, 0));
+    }
+
+    /**
+     * Drops a sequence in the current transaction.
+     *
+     * @return false if there is no such sequence
+     */
+    synchronized boolean drop(String iri) {
+        if (!exists(iri)) {
+            return false;
+        }
+        changes.put(iri, null);
+        return true;
+    }
+
+    synchronized boolean hasChanges() {
+        return !changes.isEmpty();
+    }
+
+    /**
+     * Persists the changes made by the current transaction.
+     */
+    synchronized void prepare() throws IOException {
+        prepared = true;
+        write(null, 0);
+    }
+
+    /**
+     * Makes the changes made by the current transaction visible.
+     */
+    synchronized void commit() {
+        if (changes.isEmpty()) {
+            return;
+        }
+        changes.forEach((iri, sequence) -> {
+            if (sequence == null) {
+                sequencesByIri.remove(iri);
+            } else {
+                sequencesByIri.put(iri, sequence);
+            }
+        });
+        publish();
+        changes.clear();
+        prepared = false;
+    }
+
+    /**
+     * Discards the changes made by the current transaction, rewriting the file if they were already persisted.
+     */
+    synchronized void rollback() throws IOException {
+        changes.clear();
+        if (prepared) {
+            prepared = false;
+            write(null, 0);
+        }
+    }
+
+    /**
+     * Restores the committed sequences.
+     *
+     * @param idResolver returns the entity ID of a sequence IRI
+     */
+    synchronized void read(ToLongFunction<String> idResolver) throws IOException {
+        clear();
+        if (Files.exists(path)) {
+            // A striped sequence is stored as its high-water mark, any other kind as an object with its type
+            Iterator<Map.Entry<String, JsonNode>> entries = objectMapper.readTree(path.toFile()).fields();
+            while (entries.hasNext()) {
+                Map.Entry<String, JsonNode> entry = entries.next();
+                String iri = entry.getKey();
+                long id = idResolver.applyAsLong(iri);
+                JsonNode value = entry.getValue();
+                if (value.isNumber()) {
+                    sequencesByIri.put(iri, new StripedSequence(id, iri, value.longValue()));
+                } else if (TIME_BASED_TYPE.equals(value.path(TYPE_FIELD).asText())) {
+                    sequencesByIri.put(iri, new TimeBasedSequence(id, iri,
+                            value.path(HIGH_WATER_MARK_FIELD).longValue()));
+                } else {
+                    throw new IOException("Unknown type of sequence " + iri + " in " + path);
+                }
+            }
+        }
+        publish();
+    }
+
+    synchronized void clear() {
+        sequencesByIri.clear();
+        changes.clear();
+        prepared = false;
+        publish();
+    }
+
+    private synchronized void raiseHighWaterMark(Sequence sequence, long value, long highWaterMark) {
+        if (value <= sequence.highWaterMark) {
+            // Raised by another thread meanwhile
+            return;
+        }
+        // Rewrites the marks of all sequences while holding the monitor, see the class comment
+        try {
+            write(sequence, highWaterMark);
+        } catch (IOException e) {
+            throw new PluginException("Unable to save sequence state", e);
+        }
+        // Values up to the new mark may be handed out only once it is persisted
+        sequence.highWaterMark = highWaterMark;
+    }
+
+    private void publish() {
+        TLongObjectHashMap<Sequence> sequencesById = new TLongObjectHashMap<>(sequencesByIri.size());
+        sequencesByIri.values().forEach(sequence -> sequencesById.put(sequence.id, sequence));
+        this.sequencesById = sequencesById;
+    }
+
+    /**
+     * Writes the high-water marks of the committed sequences, with the changes made by the current transaction if it
+     * was prepared.
+     *
+     * @param raised        a sequence whose high-water mark is being raised or null
+     * @param highWaterMark the new high-water mark of that sequence
+     */
+    private void write(Sequence raised, long highWaterMark) throws IOException {
+        Map<String, Sequence> sequences = new TreeMap<>(sequencesByIri);
+        if (prepared) {
+            changes.forEach((iri, sequence) -> {
+                if (sequence == null) {
+                    sequences.remove(iri);
+                } else {
+                    sequences.put(iri, sequence);
+                }
+            });
+        }
+        ObjectNode stored = objectMapper.createObjectNode();
+        sequences.forEach((iri, sequence) -> {
+            long value = sequence == raised ? highWaterMark : sequence.highWaterMark;
+            if (sequence instanceof StripedSequence) {
+                stored.put(iri, value);
+            } else {
+                stored.putObject(iri).put(TYPE_FIELD, TIME_BASED_TYPE).put(HIGH_WATER_MARK_FIELD, value);
+            }
+        });
+
+        Files.createDirectories(path.getParent());
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(objectMapper.writeValueAsBytes(stored));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,87 @@
+package com.ontotext.trree.plugin.sequences;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongFunction;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Writes and reads the sequences as plain text for bulk export and import, one sequence per line: the IRI, a tab and
+ * the last value handed out. Both directions stream the sequences, so they need memory for a single line only.
+ */
+final class SequenceFile {
+    private static final char SEPARATOR = '\t';
+
+    private SequenceFile() {
+    }
+
+    /**
+     * Writes the committed values of all sequences. The file is replaced only once complete.
+     *
+     * @param iriResolver resolves the IRI of a sequence from its entity ID
+     * @return the number of sequences written
+     */
+    static long write(Path path, SequenceStore sequences, LongFunction<String> iriResolver) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] count = new long[1];
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            try {
+                sequences.forEachSlot(slot -> {
+                    try {
+                        writer.write(sequences.iri(slot, iriResolver));
+                        writer.write(SEPARATOR);
+                        writer.write(Long.toString(sequences.committedValue(slot)));
+                        writer.write('\n');
+                        count[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * Reads the sequences one at a time. Empty lines are skipped.
+     *
+     * @param consumer receives the IRI and the value of each sequence
+     * @return the number of sequences read
+     */
+    static long read(Path path, ObjLongConsumer<String> consumer) throws IOException {
+        long count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int separator = line.lastIndexOf(SEPARATOR);
+                if (separator <= 0) {
+                    throw new IOException("Expected an IRI and a value separated by a tab at line " + lineNumber
+                            + " of " + path);
+                }
+                long value;
+                try {
+                    value = Long.parseLong(line.substring(separator + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid value at line " + lineNumber + " of " + path, e);
+                }
+                consumer.accept(line.substring(0, separator), value);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,116 @@
+package com.ontotext.trree.plugin.sequences;
+
+import java.util.HashSet;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongFunction;
+
+/**
+ * Sorted index of the sequence IRIs for the operations on all sequences under an IRI prefix. The index costs memory
+ * for every sequence, so it is built only when first used and is kept up to date by the writer from then on.
+ *
+ * The index may be read concurrently with the writer; readers see the changes made by the writer as they happen. The
+ * sequences removed by the current transaction are kept, mapped to {@link SequenceStore#NO_SLOT}, until it commits,
+ * since they are still committed for the readers outside of it, and the sequences added by it are included although
+ * they are not committed yet.
+ */
+class SequenceIndex {
+    private final SequenceStore sequences;
+
+    private volatile ConcurrentSkipListMap<String, Integer> slotsByIri;
+
+    // The sequences removed by the current transaction
+    private final Set<String> removedIris = new HashSet<>();
+
+    SequenceIndex(SequenceStore sequences) {
+        this.sequences = sequences;
+    }
+
+    /**
+     * Returns the slots of the sequences whose IRI starts with the given prefix, sorted by IRI. The slot of a sequence
+     * removed by the current transaction is {@link SequenceStore#NO_SLOT}.
+     *
+     * @param prefix      the IRI prefix, all sequences if empty
+     * @param iriResolver resolves the IRI of a sequence from its entity ID, used if the index is not built yet
+     */
+    NavigableMap<String, Integer> withPrefix(String prefix, LongFunction<String> iriResolver) {
+        ConcurrentSkipListMap<String, Integer> index = slotsByIri;
+        if (index == null) {
+            index = build(iriResolver);
+        }
+        if (prefix.isEmpty()) {
+            return index;
+        }
+        String end = successor(prefix);
+        return end == null ? index.tailMap(prefix, true) : index.subMap(prefix, true, end, false);
+    }
+
+    /**
+     * Records a sequence added to the store.
+     */
+    synchronized void add(String iri, int slot) {
+        if (slotsByIri != null) {
+            slotsByIri.put(iri, slot);
+        }
+    }
+
+    /**
+     * Records a sequence removed from the store.
+     */
+    synchronized void remove(String iri) {
+        if (slotsByIri != null) {
+            slotsByIri.put(iri, SequenceStore.NO_SLOT);
+            removedIris.add(iri);
+        }
+    }
+
+    /**
+     * Drops the sequences removed by the current transaction once it is committed.
+     */
+    synchronized void commit() {
+        if (slotsByIri != null) {
+            for (String iri : removedIris) {
+                slotsByIri.remove(iri, SequenceStore.NO_SLOT);
+            }
+        }
+        removedIris.clear();
+    }
+
+    /**
+     * Discards the index, e.g. when the store is cleared. It is built again when next used.
+     */
+    synchronized void clear() {
+        slotsByIri = null;
+        removedIris.clear();
+    }
+
+    private synchronized ConcurrentSkipListMap<String, Integer> build(LongFunction<String> iriResolver) {
+        if (slotsByIri == null) {
+            ConcurrentSkipListMap<String, Integer> index = new ConcurrentSkipListMap<>();
+            sequences.forEachSlotLocked(slot -> index.put(sequences.iri(slot, iriResolver), slot), iriResolver, iri -> {
+                // A sequence may be removed and added again by the transaction
+                index.putIfAbsent(iri, SequenceStore.NO_SLOT);
+                removedIris.add(iri);
+            });
+            slotsByIri = index;
+        }
+        return slotsByIri;
+    }
+
+    /**
+     * Returns the smallest string greater than all strings with the given prefix, or null if there is none.
+     */
+    private static String successor(String prefix) {
+        StringBuilder end = new StringBuilder(prefix);
+        while (end.length() > 0) {
+            char last = end.charAt(end.length() - 1);
+            if (last != Character.MAX_VALUE) {
+                end.setCharAt(end.length() - 1, (char) (last + 1));
+                return end.toString();
+            }
+            end.setLength(end.length() - 1);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Objects;
+
+/**
+ * Per-sequence options that change how the values of a sequence are allocated or returned. Sequences that use the
+ * defaults have no options at all.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+class SequenceOptions {
+    private final int cacheSize;
+    private final String iriPrefix;
+
+    /**
+     * @param cacheSize the number of values reserved at once, see {@link #getCacheSize()}
+     */
+    SequenceOptions(int cacheSize) {
+        this(cacheSize, null);
+    }
+
+    /**
+     * @param cacheSize the number of values reserved at once, see {@link #getCacheSize()}
+     * @param iriPrefix the prefix of the IRIs minted from the sequence, see {@link #getIriPrefix()}
+     */
+    @JsonCreator
+    SequenceOptions(@JsonProperty("cacheSize") int cacheSize, @JsonProperty("iriPrefix") String iriPrefix) {
+        this.cacheSize = cacheSize;
+        this.iriPrefix = iriPrefix;
+    }
+
+    /**
+     * Returns the options with the given cache size, or null if the result uses the defaults.
+     *
+     * @param options the current options or null for the defaults
+     */
+    static SequenceOptions withCacheSize(SequenceOptions options, int cacheSize) {
+        return normalize(new SequenceOptions(cacheSize, options == null ? null : options.iriPrefix));
+    }
+
+    /**
+     * Returns the options with the given IRI prefix, or null if the result uses the defaults.
+     *
+     * @param options the current options or null for the defaults
+     */
+    static SequenceOptions withIriPrefix(SequenceOptions options, String iriPrefix) {
+        return normalize(new SequenceOptions(options == null ? 0 : options.cacheSize, iriPrefix));
+    }
+
+    private static SequenceOptions normalize(SequenceOptions options) {
+        return options.isCached() || options.iriPrefix != null ? options : null;
+    }
+
+    /**
+     * Returns the number of values reserved at once by a cached sequence. Values within a reserved block are handed
+     * out from memory and only the end of the block is recorded in the transaction. Values of a block that are not
+     * handed out before a restart, as well as values handed out in a transaction that is rolled back, are skipped.
+     */
+    @JsonProperty
+    int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Returns the prefix of the IRIs minted by seq:nextIRI, which appends the next value to it, or null if the
+     * sequence does not mint IRIs.
+     */
+    @JsonProperty
+    String getIriPrefix() {
+        return iriPrefix;
+    }
+
+    boolean isCached() {
+        return cacheSize > 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SequenceOptions)) {
+            return false;
+        }
+        SequenceOptions other = (SequenceOptions) o;
+        return other.cacheSize == cacheSize && Objects.equals(other.iriPrefix, iriPrefix);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * cacheSize + Objects.hashCode(iriPrefix);
+    }
+}
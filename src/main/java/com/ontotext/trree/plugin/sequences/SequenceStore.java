@@ -0,0 +1,614 @@
+package com.ontotext.trree.plugin.sequences;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TObjectIntHashMap;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Stores the state of all sequences in primitive arrays. Each sequence occupies a slot that is found through a
+ * primitive index by the entity ID of the sequence IRI. The IRIs themselves are not kept; they are resolved through
+ * the entity pool when needed, e.g. when the state is persisted.
+ *
+ * The store has a single writer. The committed values can also be read concurrently with the writer through
+ * {@link #readCommittedValue(long, Supplier)}; the writer takes a lock only for the changes that such reads can
+ * observe, i.e. adding, binding and removing sequences and committing values. Such reads do not see the sequences
+ * added or removed by the writer until the next commit, which publishes them together with the committed values, so a
+ * commit is observed either in full or not at all. A rollback undoes them.
+ *
+ * Sequences restored at startup may be added unbound, i.e. by IRI only, and bound to their entity ID the first time
+ * they are referenced, so that restoring does not need to resolve the IRI of every sequence in the entity pool.
+ *
+ * Every slot holds the current and the committed value of the sequence, the hash of its IRI and a prepared bit.
+ * The store also maintains the fingerprint of all sequences, which is the sum of the fingerprints of the individual
+ * sequences (see {@link Fingerprints}). A sequence contributes its committed value, unless it is prepared for commit,
+ * in which case it contributes the value that is about to be committed.
+ *
+ * Sequences with {@link SequenceOptions} may be cached: their value is the end of the block of values reserved so
+ * far, while the last value handed out from the block is kept only in memory.
+ */
+class SequenceStore {
+    static final int NO_SLOT = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Slots are stored incremented by one since the map returns 0 for missing keys
+    private final TLongIntHashMap slotsById;
+    private final TIntArrayList freeSlots = new TIntArrayList();
+    // Slots are stored incremented by one since the map returns 0 for missing keys
+    private final TObjectIntHashMap<String> unboundSlotsByIri = new TObjectIntHashMap<>();
+    private int usedSlots;
+
+    // Entity ID of the sequence in each slot, 0 for free and unbound slots
+    private long[] ids;
+    // IRI of the sequence in each unbound slot, null for all other slots
+    private String[] unboundIris;
+    private long[] iriHashes;
+    private long[] values;
+    private long[] committedValues;
+    private long[] preparedBits;
+    // Null for sequences with the default options
+    private SequenceOptions[] options;
+
+    // Sequences added since the last commit or rollback, which readCommittedValue() does not see yet
+    private long[] addedBits;
+    private final TIntArrayList addedSlots = new TIntArrayList();
+    // Committed sequences removed since the last commit or rollback, which readCommittedValue() still sees. Their
+    // slots keep the committed values and options until then, so that a rollback can restore them. Slots are stored
+    // incremented by one since the maps return 0 for missing keys.
+    private final TLongIntHashMap removedSlotsById = new TLongIntHashMap();
+    private final TObjectIntHashMap<String> removedUnboundSlotsByIri = new TObjectIntHashMap<>();
+
+    // Last value handed out by each cached sequence, missing if the reserved block is exhausted
+    private final TIntLongHashMap cacheCursors = new TIntLongHashMap();
+
+    private long fingerprint;
+
+    // Guards the changes visible to readCommittedValue()
+    private final StampedLock committedLock = new StampedLock();
+
+    SequenceStore() {
+        this(MIN_CAPACITY);
+    }
+
+    SequenceStore(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, MIN_CAPACITY);
+        slotsById = new TLongIntHashMap(capacity);
+        ids = new long[capacity];
+        unboundIris = new String[capacity];
+        iriHashes = new long[capacity];
+        values = new long[capacity];
+        committedValues = new long[capacity];
+        preparedBits = new long[bitsLength(capacity)];
+        options = new SequenceOptions[capacity];
+        addedBits = new long[bitsLength(capacity)];
+    }
+
+    /**
+     * Returns the number of sequences in the store.
+     */
+    int size() {
+        return slotsById.size() + unboundSlotsByIri.size();
+    }
+
+    /**
+     * Returns the slot of the sequence with the given entity ID or {@link #NO_SLOT} if there is no such sequence.
+     */
+    int slot(long id) {
+        return slotsById.get(id) - 1;
+    }
+
+    /**
+     * Adds a new committed sequence.
+     *
+     * @param id      the entity ID of the sequence IRI
+     * @param iriHash the hash of the sequence IRI as computed by {@link Fingerprints#ofIRI(String)}
+     * @param value   the initial value of the sequence
+     * @return the slot of the new sequence
+     */
+    int add(long id, long iriHash, long value) {
+        long stamp = committedLock.writeLock();
+        try {
+            int slot = newSlot(iriHash, value);
+            ids[slot] = id;
+            slotsById.put(id, slot + 1);
+            return slot;
+        } finally {
+            committedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a new committed sequence that is not bound to an entity ID yet, see {@link #bind(String, long)}.
+     *
+     * @param iri     the sequence IRI
+     * @param iriHash the hash of the sequence IRI as computed by {@link Fingerprints#ofIRI(String)}
+     * @param value   the initial value of the sequence
+     * @return the slot of the new sequence
+     */
+    int addUnbound(String iri, long iriHash, long value) {
+        long stamp = committedLock.writeLock();
+        try {
+            int slot = newSlot(iriHash, value);
+            unboundIris[slot] = iri;
+            unboundSlotsByIri.put(iri, slot + 1);
+            return slot;
+        } finally {
+            committedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Checks if there are any sequences that are not bound to an entity ID.
+     */
+    boolean hasUnbound() {
+        return !unboundSlotsByIri.isEmpty();
+    }
+
+    /**
+     * Returns the slot of the unbound sequence with the given IRI or {@link #NO_SLOT} if there is no such sequence.
+     */
+    int unboundSlot(String iri) {
+        return unboundSlotsByIri.get(iri) - 1;
+    }
+
+    /**
+     * Binds an unbound sequence to its entity ID.
+     *
+     * @return the slot of the sequence or {@link #NO_SLOT} if there is no unbound sequence with the given IRI
+     */
+    int bind(String iri, long id) {
+        long stamp = committedLock.writeLock();
+        try {
+            int slot = unboundSlotsByIri.remove(iri) - 1;
+            if (slot != NO_SLOT) {
+                unboundIris[slot] = null;
+                ids[slot] = id;
+                slotsById.put(id, slot + 1);
+            }
+            return slot;
+        } finally {
+            committedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the sequence in the given slot. The slot may be reused by a subsequently added sequence, after the next
+     * commit if the sequence was committed.
+     */
+    void remove(int slot) {
+        fingerprint -= fingerprint(slot);
+        long stamp = committedLock.writeLock();
+        try {
+            boolean added = isAdded(slot);
+            if (unboundIris[slot] != null) {
+                unboundSlotsByIri.remove(unboundIris[slot]);
+                if (!added) {
+                    removedUnboundSlotsByIri.put(unboundIris[slot], slot + 1);
+                }
+                unboundIris[slot] = null;
+            } else {
+                slotsById.remove(ids[slot]);
+                if (!added) {
+                    removedSlotsById.put(ids[slot], slot + 1);
+                }
+            }
+            ids[slot] = 0;
+            if (added) {
+                setAdded(slot, false);
+                freeSlot(slot);
+            }
+        } finally {
+            committedLock.unlockWrite(stamp);
+        }
+        cacheCursors.remove(slot);
+    }
+
+    /**
+     * Removes all sequences.
+     */
+    void clear() {
+        long stamp = committedLock.writeLock();
+        try {
+            slotsById.clear();
+            unboundSlotsByIri.clear();
+            Arrays.fill(ids, 0);
+            Arrays.fill(unboundIris, null);
+            Arrays.fill(addedBits, 0);
+            addedSlots.clear();
+            removedSlotsById.clear();
+            removedUnboundSlotsByIri.clear();
+        } finally {
+            committedLock.unlockWrite(stamp);
+        }
+        freeSlots.clear();
+        usedSlots = 0;
+        Arrays.fill(preparedBits, 0);
+        Arrays.fill(options, null);
+        cacheCursors.clear();
+        fingerprint = 0;
+    }
+
+    long id(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * Returns the hash of the sequence IRI, see {@link Fingerprints#ofIRI(String)}.
+     */
+    long iriHash(int slot) {
+        return iriHashes[slot];
+    }
+
+    /**
+     * Returns the IRI of a sequence, resolving it from the entity ID if the sequence is bound.
+     */
+    String iri(int slot, LongFunction<String> iriResolver) {
+        String iri = unboundIris[slot];
+        return iri != null ? iri : iriResolver.apply(ids[slot]);
+    }
+
+    /**
+     * Increments a sequence. A cached sequence reserves a new block of values when the current one is exhausted,
+     * which is the only case when its value changes.
+     */
+    long nextValue(int slot) {
+        return nextValues(slot, 1);
+    }
+
+    /**
+     * Obtains a range of consecutive values from a sequence, reserving a new block for a cached sequence if the
+     * range does not fit in the current one.
+     *
+     * @param count the number of values, must be positive
+     * @return the first value of the range
+     * @throws ArithmeticException if the sequence has fewer values left, in which case it is not changed
+     */
+    long nextValues(int slot, long count) {
+        SequenceOptions slotOptions = options[slot];
+        if (slotOptions == null || !slotOptions.isCached()) {
+            long last = Math.addExact(values[slot], count);
+            values[slot] = last;
+            return last - count + 1;
+        }
+
+        long first = Math.addExact(lastValue(slot), 1);
+        long last = Math.addExact(first, count - 1);
+        if (last > values[slot]) {
+            // A block that would end past the largest value overflows and is cut to the requested range
+            values[slot] = Math.max(last, first - 1 + slotOptions.getCacheSize());
+        }
+        cacheCursors.put(slot, last);
+        return first;
+    }
+
+    /**
+     * Returns the value of a sequence, which for cached sequences is the end of the reserved block.
+     */
+    long currentValue(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Returns the last value handed out by a sequence.
+     */
+    long lastValue(int slot) {
+        return cacheCursors.containsKey(slot) ? cacheCursors.get(slot) : values[slot];
+    }
+
+    long committedValue(int slot) {
+        return committedValues[slot];
+    }
+
+    /**
+     * Returns the committed value of a sequence. Unlike the other methods, this one may be called concurrently with
+     * the writer. It does not block in the common case, when the writer is not adding, removing or committing
+     * sequences at the same time, and never binds an unbound sequence. Sequences added since the last commit or
+     * rollback are not found, while sequences removed since then still are.
+     *
+     * @param id  the entity ID of the sequence IRI
+     * @param iri supplies the sequence IRI, used only if the sequence is not found by entity ID
+     * @return the committed value or null if there is no such sequence
+     */
+    Long readCommittedValue(long id, Supplier<String> iri) {
+        long stamp = committedLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Long value = findCommittedValue(id, iri);
+                if (committedLock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // The writer changed the store during the read, retry below
+            }
+        }
+
+        stamp = committedLock.readLock();
+        try {
+            return findCommittedValue(id, iri);
+        } finally {
+            committedLock.unlockRead(stamp);
+        }
+    }
+
+    private Long findCommittedValue(long id, Supplier<String> iri) {
+        int slot = committedSlot(slotsById.get(id) - 1, removedSlotsById.get(id) - 1);
+        if (slot == NO_SLOT && !(unboundSlotsByIri.isEmpty() && removedUnboundSlotsByIri.isEmpty())) {
+            String sequenceIri = iri.get();
+            slot = committedSlot(unboundSlotsByIri.get(sequenceIri) - 1,
+                    removedUnboundSlotsByIri.get(sequenceIri) - 1);
+        }
+        return slot == NO_SLOT ? null : committedValues[slot];
+    }
+
+    /**
+     * Returns the slot of a committed sequence given its current slot and the slot it had if it was removed since the
+     * last commit or rollback, either of which may be {@link #NO_SLOT}.
+     */
+    private int committedSlot(int slot, int removedSlot) {
+        if (removedSlot != NO_SLOT) {
+            return removedSlot;
+        }
+        return slot == NO_SLOT || isAdded(slot) ? NO_SLOT : slot;
+    }
+
+    void setValue(int slot, long value) {
+        long previousFingerprint = fingerprint(slot);
+        values[slot] = value;
+        fingerprint += fingerprint(slot) - previousFingerprint;
+    }
+
+    /**
+     * Sets the value of a sequence and discards the values reserved by it, if it is cached.
+     */
+    void reset(int slot, long value) {
+        setValue(slot, value);
+        cacheCursors.remove(slot);
+    }
+
+    /**
+     * Returns the options of a sequence or null if it uses the defaults.
+     */
+    SequenceOptions options(int slot) {
+        return options[slot];
+    }
+
+    /**
+     * Sets the options of a sequence, null for the defaults. The values reserved by the sequence are discarded if
+     * its cache size changes.
+     */
+    void setOptions(int slot, SequenceOptions slotOptions) {
+        if (cacheSize(options[slot]) != cacheSize(slotOptions)) {
+            cacheCursors.remove(slot);
+        }
+        options[slot] = slotOptions;
+    }
+
+    private static int cacheSize(SequenceOptions slotOptions) {
+        return slotOptions == null || !slotOptions.isCached() ? 1 : slotOptions.getCacheSize();
+    }
+
+    void prepare(int slot) {
+        long previousFingerprint = fingerprint(slot);
+        setPrepared(slot, true);
+        fingerprint += fingerprint(slot) - previousFingerprint;
+    }
+
+    /**
+     * Commits the values of the given sequences along with the sequences added and removed since the last commit or
+     * rollback, all at once for {@link #readCommittedValue(long, Supplier)}.
+     */
+    void commit(int... slots) {
+        long stamp = committedLock.writeLock();
+        try {
+            for (int slot : slots) {
+                committedValues[slot] = values[slot];
+            }
+            publishAddedAndRemoved();
+        } finally {
+            committedLock.unlockWrite(stamp);
+        }
+        for (int slot : slots) {
+            setPrepared(slot, false);
+        }
+    }
+
+    /**
+     * Restores the committed values of the given sequences and undoes the adding and removing of sequences since the
+     * last commit or rollback: added sequences are removed and removed ones are restored with their committed values
+     * and options.
+     */
+    void rollback(int... slots) {
+        for (int slot : slots) {
+            long previousFingerprint = fingerprint(slot);
+            values[slot] = committedValues[slot];
+            setPrepared(slot, false);
+            fingerprint += fingerprint(slot) - previousFingerprint;
+        }
+        long stamp = committedLock.writeLock();
+        try {
+            undoAddedAndRemoved();
+        } finally {
+            committedLock.unlockWrite(stamp);
+        }
+    }
+
+    private void publishAddedAndRemoved() {
+        for (int i = 0; i < addedSlots.size(); i++) {
+            setAdded(addedSlots.getQuick(i), false);
+        }
+        addedSlots.clear();
+        removedSlotsById.forEachValue(slot -> {
+            freeSlot(slot - 1);
+            return true;
+        });
+        removedSlotsById.clear();
+        removedUnboundSlotsByIri.forEachValue(slot -> {
+            freeSlot(slot - 1);
+            return true;
+        });
+        removedUnboundSlotsByIri.clear();
+    }
+
+    private void undoAddedAndRemoved() {
+        for (int i = 0; i < addedSlots.size(); i++) {
+            int slot = addedSlots.getQuick(i);
+            // Slots added and removed again are already free, possibly reused and listed again
+            if (isAdded(slot)) {
+                fingerprint -= fingerprint(slot);
+                if (unboundIris[slot] != null) {
+                    unboundSlotsByIri.remove(unboundIris[slot]);
+                    unboundIris[slot] = null;
+                } else {
+                    slotsById.remove(ids[slot]);
+                }
+                ids[slot] = 0;
+                setAdded(slot, false);
+                cacheCursors.remove(slot);
+                freeSlot(slot);
+            }
+        }
+        addedSlots.clear();
+        // Added sequences are removed first, since they may have replaced the removed ones
+        removedSlotsById.forEachEntry((id, slot) -> {
+            ids[slot - 1] = id;
+            slotsById.put(id, slot);
+            restore(slot - 1);
+            return true;
+        });
+        removedSlotsById.clear();
+        removedUnboundSlotsByIri.forEachEntry((iri, slot) -> {
+            unboundIris[slot - 1] = iri;
+            unboundSlotsByIri.put(iri, slot);
+            restore(slot - 1);
+            return true;
+        });
+        removedUnboundSlotsByIri.clear();
+    }
+
+    private void restore(int slot) {
+        values[slot] = committedValues[slot];
+        setPrepared(slot, false);
+        fingerprint += fingerprint(slot);
+    }
+
+    private void freeSlot(int slot) {
+        options[slot] = null;
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Returns the fingerprint of all sequences in the store.
+     */
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Calls the consumer with the slot of every sequence in the store.
+     */
+    void forEachSlot(IntConsumer consumer) {
+        for (int slot = 0; slot < usedSlots; slot++) {
+            if (ids[slot] != 0 || unboundIris[slot] != null) {
+                consumer.accept(slot);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #forEachSlot(IntConsumer)}, but may be called concurrently with the writer, which cannot add, bind or
+     * remove sequences meanwhile. Also passes the IRIs of the committed sequences removed since the last commit, which
+     * {@link #readCommittedValue(long, Supplier)} still sees, to the second consumer.
+     *
+     * @param iriResolver resolves the IRI of a removed sequence from its entity ID
+     */
+    void forEachSlotLocked(IntConsumer consumer, LongFunction<String> iriResolver, Consumer<String> removedConsumer) {
+        long stamp = committedLock.readLock();
+        try {
+            forEachSlot(consumer);
+            removedSlotsById.forEachKey(id -> {
+                removedConsumer.accept(iriResolver.apply(id));
+                return true;
+            });
+            removedUnboundSlotsByIri.forEachKey(iri -> {
+                removedConsumer.accept(iri);
+                return true;
+            });
+        } finally {
+            committedLock.unlockRead(stamp);
+        }
+    }
+
+    private int newSlot(long iriHash, long value) {
+        int slot;
+        if (freeSlots.isEmpty()) {
+            if (usedSlots == ids.length) {
+                grow();
+            }
+            slot = usedSlots++;
+        } else {
+            slot = freeSlots.remove(freeSlots.size() - 1);
+        }
+
+        iriHashes[slot] = iriHash;
+        values[slot] = value;
+        committedValues[slot] = value;
+        setPrepared(slot, false);
+        setAdded(slot, true);
+        addedSlots.add(slot);
+        options[slot] = null;
+        fingerprint += fingerprint(slot);
+        return slot;
+    }
+
+    private long fingerprint(int slot) {
+        return Fingerprints.ofSequence(iriHashes[slot], isPrepared(slot) ? values[slot] : committedValues[slot]);
+    }
+
+    private boolean isPrepared(int slot) {
+        return (preparedBits[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void setPrepared(int slot, boolean prepared) {
+        if (prepared) {
+            preparedBits[slot >>> 6] |= 1L << slot;
+        } else {
+            preparedBits[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+
+    private boolean isAdded(int slot) {
+        return (addedBits[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void setAdded(int slot, boolean added) {
+        if (added) {
+            addedBits[slot >>> 6] |= 1L << slot;
+        } else {
+            addedBits[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+
+    private void grow() {
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        unboundIris = Arrays.copyOf(unboundIris, capacity);
+        iriHashes = Arrays.copyOf(iriHashes, capacity);
+        values = Arrays.copyOf(values, capacity);
+        committedValues = Arrays.copyOf(committedValues, capacity);
+        preparedBits = Arrays.copyOf(preparedBits, bitsLength(capacity));
+        options = Arrays.copyOf(options, capacity);
+        addedBits = Arrays.copyOf(addedBits, bitsLength(capacity));
+    }
+
+    private static int bitsLength(int capacity) {
+        return (capacity + 63) >>> 6;
+    }
+}
@@ -0,0 +1,188 @@
+package com.ontotext.trree.plugin.sequences;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Runtime metrics of the plugin. The same metrics are exposed as the read-only attributes of an MBean and through the
+ * seq:stats predicate.
+ *
+ * The counters of the values obtained in a transaction are kept by the plugin in plain fields and added here once per
+ * transaction. The values of non-transactional sequences, which are obtained outside of transactions, are counted
+ * here directly. The latency of every seq:nextValue and seq:nextValues call is recorded, which costs two reads of the
+ * clock and a few atomic additions per call.
+ */
+class SequencesMetrics implements DynamicMBean {
+    /**
+     * The number of metrics in a {@link #snapshot()}, which is known without taking one.
+     */
+    static final int METRIC_COUNT = 27;
+
+    private final LongSupplier sequenceCount;
+    private final LongSupplier fingerprintsKept;
+    private final LongSupplier stateBytes;
+    private final LongSupplier fingerprint;
+
+    private final LongAdder nextValueCalls = new LongAdder();
+    private final LongAdder valuesObtained = new LongAdder();
+    private final LongAdder resetStatements = new LongAdder();
+    private final LongAdder transactionsCommitted = new LongAdder();
+    private final LongAdder transactionsAborted = new LongAdder();
+    private final LongAdder persistedBytes = new LongAdder();
+    private final LongAdder snapshotsWritten = new LongAdder();
+    private final LatencyHistogram nextValueLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LatencyHistogram persistLatency = new LatencyHistogram();
+    private volatile long stateLoadMillis;
+
+    /**
+     * @param sequenceCount    supplies the number of sequences
+     * @param fingerprintsKept supplies the number of fingerprints that can be reverted to
+     * @param stateBytes       supplies the size of the persisted state
+     * @param fingerprint      supplies the current fingerprint, to compare the state of cluster nodes
+     */
+    SequencesMetrics(LongSupplier sequenceCount, LongSupplier fingerprintsKept, LongSupplier stateBytes,
+                     LongSupplier fingerprint) {
+        this.sequenceCount = sequenceCount;
+        this.fingerprintsKept = fingerprintsKept;
+        this.stateBytes = stateBytes;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Records a finished transaction.
+     *
+     * @param calls  the number of seq:nextValue and seq:nextValues calls
+     * @param values the number of values obtained by these calls
+     */
+    void transactionFinished(boolean committed, long calls, long values) {
+        (committed ? transactionsCommitted : transactionsAborted).increment();
+        if (calls != 0) {
+            nextValueCalls.add(calls);
+            valuesObtained.add(values);
+        }
+    }
+
+    /**
+     * Records a seq:nextValue or seq:nextValues call on a non-transactional sequence, which is not part of a
+     * transaction.
+     *
+     * @param values the number of values obtained by the call
+     */
+    void nonTransactionalValuesObtained(long values) {
+        nextValueCalls.increment();
+        valuesObtained.add(values);
+    }
+
+    /**
+     * Records the duration of a seq:nextValue or seq:nextValues call on any kind of sequence.
+     */
+    void nextValueTimed(long nanos) {
+        nextValueLatency.record(nanos);
+    }
+
+    void resetStatementsAdded(int count) {
+        resetStatements.add(count);
+    }
+
+    void committed(long nanos) {
+        commitLatency.record(nanos);
+    }
+
+    void persisted(long bytes, long nanos, boolean snapshot) {
+        persistedBytes.add(bytes);
+        persistLatency.record(nanos);
+        if (snapshot) {
+            snapshotsWritten.increment();
+        }
+    }
+
+    void stateLoaded(long millis) {
+        stateLoadMillis = millis;
+    }
+
+    /**
+     * Returns the current value of every metric by name, in a stable order.
+     */
+    Map<String, Long> snapshot() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("sequences", sequenceCount.getAsLong());
+        metrics.put("nextValueCalls", nextValueCalls.sum());
+        metrics.put("valuesObtained", valuesObtained.sum());
+        metrics.put("resetStatements", resetStatements.sum());
+        metrics.put("transactionsCommitted", transactionsCommitted.sum());
+        metrics.put("transactionsAborted", transactionsAborted.sum());
+        putLatency(metrics, "nextValue", nextValueLatency);
+        putLatency(metrics, "commit", commitLatency);
+        putLatency(metrics, "persist", persistLatency);
+        metrics.put("persistedBytes", persistedBytes.sum());
+        metrics.put("snapshotsWritten", snapshotsWritten.sum());
+        metrics.put("stateBytes", stateBytes.getAsLong());
+        metrics.put("fingerprintsKept", fingerprintsKept.getAsLong());
+        metrics.put("fingerprint", fingerprint.getAsLong());
+        metrics.put("stateLoadMillis", stateLoadMillis);
+        return metrics;
+    }
+
+    private static void putLatency(Map<String, Long> metrics, String name, LatencyHistogram histogram) {
+        metrics.put(name + "Count", histogram.count());
+        metrics.put(name + "MeanMicros", histogram.meanMicros());
+        metrics.put(name + "P50Micros", histogram.percentileMicros(50));
+        metrics.put(name + "P99Micros", histogram.percentileMicros(99));
+        metrics.put(name + "MaxMicros", histogram.maxMicros());
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> metrics = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (metrics.containsKey(attribute)) {
+                list.add(new Attribute(attribute, metrics.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Sequences metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = snapshot().keySet().stream()
+                .map(name -> new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(getClass().getName(), "GraphDB Sequences plugin metrics", attributes, null, null,
+                null);
+    }
+}
@@ -1,5 +1,6 @@
 package com.ontotext.trree.plugin.sequences;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ontotext.trree.sdk.Entities;
 import com.ontotext.trree.sdk.InitReason;
@@ -8,11 +9,12 @@ import com.ontotext.trree.sdk.PluginBase;
 import com.ontotext.trree.sdk.PluginConnection;
 import com.ontotext.trree.sdk.PluginException;
 import com.ontotext.trree.sdk.PluginTransactionListener;
+import com.ontotext.trree.sdk.Preprocessor;
+import com.ontotext.trree.sdk.Request;
 import com.ontotext.trree.sdk.RequestContext;
 import com.ontotext.trree.sdk.ShutdownReason;
 import com.ontotext.trree.sdk.StatementIterator;
 import com.ontotext.trree.sdk.UpdateInterpreter;
-import gnu.trove.TLongObjectHashMap;
 import org.eclipse.rdf4j.model.BNode;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Literal;
@@ -20,15 +22,27 @@ import org.eclipse.rdf4j.model.Resource;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.function.LongFunction;
 
 /**
  * GraphDB Sequences plugin main class
  */
-public class SequencesPlugin extends PluginBase implements PluginTransactionListener, PatternInterpreter, UpdateInterpreter {
+public class SequencesPlugin extends PluginBase implements PluginTransactionListener, PatternInterpreter, UpdateInterpreter,
+        Preprocessor {
     private static final String NS = "http://www.ontotext.com/plugins/sequences#";
 
     private static final String CREATE_LOCAL_NAME = "create";
@@ -37,7 +51,83 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
     private static final String PREPARE_LOCAL_NAME = "prepare";
     private static final String NEXT_VALUE_LOCAL_NAME = "nextValue";
     private static final String CURRENT_VALUE_LOCAL_NAME = "currentValue";
+    private static final String NEXT_VALUES_LOCAL_NAME = "nextValues";
+    private static final String CACHE_LOCAL_NAME = "cache";
+    private static final String STATS_LOCAL_NAME = "stats";
+    private static final String LIST_LOCAL_NAME = "list";
+    private static final String DROP_PREFIX_LOCAL_NAME = "dropPrefix";
+    private static final String RESET_PREFIX_LOCAL_NAME = "resetPrefix";
+    private static final String IRI_PREFIX_LOCAL_NAME = "iriPrefix";
+    private static final String NEXT_IRI_LOCAL_NAME = "nextIRI";
+    private static final String NEXT_IRIS_LOCAL_NAME = "nextIRIs";
+    private static final String CREATE_STRIPED_LOCAL_NAME = "createStriped";
+    private static final String CREATE_TIME_BASED_LOCAL_NAME = "createTimeBased";
+    private static final String EXPORT_LOCAL_NAME = "export";
+    private static final String IMPORT_LOCAL_NAME = "import";
 
+    /**
+     * The subdirectory of the plugin data directory with the files of seq:export and seq:import
+     */
+    private static final String TRANSFER_DIRECTORY = "transfer";
+
+    /**
+     * The state log is compacted into a new snapshot once it grows larger than the snapshot (but not before it reaches
+     * this size), which keeps the amortized cost of a commit proportional to the number of changed sequences.
+     */
+    private static final long MIN_LOG_SIZE_TO_COMPACT = 64 * 1024;
+
+    /**
+     * The estimate of the patterns that obtain values. Each evaluation hands out values, so these patterns must come
+     * after all other patterns of the query, and the filters on them, have reduced the results. The estimate is above
+     * the number of statements in any repository, yet finite, so that it still combines with the other estimates.
+     */
+    private static final double NEXT_VALUE_ESTIMATE = 1e15;
+
+    /**
+     * System property that sets how many recent fingerprints can be reverted to
+     */
+    private static final String MAX_FINGERPRINTS_PROPERTY = "graphdb.sequences.maxFingerprints";
+
+    /**
+     * System property that turns off the lazy binding of restored sequences to entity IDs
+     */
+    private static final String LAZY_BINDING_PROPERTY = "graphdb.sequences.lazyBinding";
+
+    /**
+     * System property with the IRI prefixes under which sequences are created on first use, see {@link AutoCreateRules}
+     */
+    private static final String AUTO_CREATE_PROPERTY = "graphdb.sequences.autoCreate";
+
+    /**
+     * System property that sets the number of shards of the state snapshot, see {@link StateSnapshot}
+     */
+    private static final String STATE_SHARDS_PROPERTY = "graphdb.sequences.stateShards";
+
+    /**
+     * System property that selects how the state is persisted: "snapshot" (the default) for a snapshot and a state
+     * log, "mapped" for a slot file updated in place, see {@link SlotFile}
+     */
+    private static final String STORAGE_PROPERTY = "graphdb.sequences.storage";
+
+    /**
+     * System property that sets the number of values a thread takes at once from a striped sequence, see
+     * {@link NonTransactionalSequences}
+     */
+    private static final String STRIPED_BLOCK_SIZE_PROPERTY = "graphdb.sequences.stripedBlockSize";
+
+    /**
+     * System property that sets the node ID in the IDs of time-based sequences, see {@link NonTransactionalSequences}.
+     * Required on cluster nodes, where a default would give the IDs of all nodes the same node ID.
+     */
+    private static final String NODE_ID_PROPERTY = "graphdb.sequences.nodeId";
+
+    /**
+     * System property that marks the node as part of a cluster, where seq:import is rejected since it reads a file
+     * that only the node running the import has, and so are striped sequences since their values are not replicated
+     */
+    private static final String CLUSTER_PROPERTY = "graphdb.sequences.cluster";
+
+    private static final IRI CREATE_IRI = SimpleValueFactory.getInstance().createIRI(NS, CREATE_LOCAL_NAME);
     private static final IRI RESET_IRI = SimpleValueFactory.getInstance().createIRI(NS, RESET_LOCAL_NAME);
 
     private long createSequenceId;
@@ -46,18 +136,68 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
     private long prepareSequenceId;
     private long nextValueId;
     private long currentValueId;
+    private long nextValuesId;
+    private long cacheSequenceId;
+    private long statsId;
+    private long listId;
+    private long dropPrefixId;
+    private long resetPrefixId;
+    private long iriPrefixId;
+    private long nextIRIId;
+    private long nextIRIsId;
+    private long createStripedSequenceId;
+    private long createTimeBasedSequenceId;
+    private long exportId;
+    private long importId;
 
     private volatile boolean preparedForUse;
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    private final TLongObjectHashMap<Sequence> sequencesById = new TLongObjectHashMap<>();
+    private final SequenceStore sequences = new SequenceStore();
+
+    private final TouchedSequences touchedSequences = new TouchedSequences(sequences);
 
-    private final TreeMap<String, Sequence> sequencesByIRI = new TreeMap<>();
+    private final SequenceIndex sequenceIndex = new SequenceIndex(sequences);
 
     private Path statePath;
-    private final FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+    private Path jsonStatePath;
+    private Path optionsPath;
+    private StateLog stateLog;
+    private long snapshotSize;
+    private int shardCount;
+    // The shard count of the snapshot on disk, 0 if there is none
+    private int storedShardCount;
+    // The shards with changes that are only in the state log
+    private final BitSet dirtyShards = new BitSet();
+    // Null unless the state is persisted in a slot file
+    private SlotFile slotFile;
+    private FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+    private NonTransactionalSequences nonTransactionalSequences;
     private long expectedFingerprint;
+    // The fingerprint the state was stored under if it differs from the one of the sequences, 0 otherwise, see
+    // updateStoredFingerprint()
+    private long storedFingerprint;
+    private boolean savedInTransaction;
+    // Set if the transaction imported sequences, which are persisted in a snapshot rather than in the state log
+    private boolean importedInTransaction;
+    private long fingerprintBeforeTransaction;
+
+    private SequencesMetrics metrics;
+    private ObjectName metricsName;
+
+    // Counted in plain fields on the hot path and added to the metrics once per transaction
+    private long transactionNextValueCalls;
+    private long transactionValuesObtained;
+
+    private AutoCreateRules autoCreateRules = AutoCreateRules.NONE;
+
+    // Set if the node is part of a cluster, see CLUSTER_PROPERTY
+    private boolean clusterNode;
+
+    // Set while the plugin adds create and reset statements itself, which must not create the sequences again or
+    // discard the values reserved by them
+    private boolean addingStatements;
 
     @Override
     public String getName() {
@@ -73,15 +213,77 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
         prepareSequenceId = newSystemIri(pluginConnection, PREPARE_LOCAL_NAME);
         nextValueId = newSystemIri(pluginConnection, NEXT_VALUE_LOCAL_NAME);
         currentValueId = newSystemIri(pluginConnection, CURRENT_VALUE_LOCAL_NAME);
-        statePath = getDataDir().toPath().resolve("state.js");
+        nextValuesId = newSystemIri(pluginConnection, NEXT_VALUES_LOCAL_NAME);
+        cacheSequenceId = newSystemIri(pluginConnection, CACHE_LOCAL_NAME);
+        statsId = newSystemIri(pluginConnection, STATS_LOCAL_NAME);
+        listId = newSystemIri(pluginConnection, LIST_LOCAL_NAME);
+        dropPrefixId = newSystemIri(pluginConnection, DROP_PREFIX_LOCAL_NAME);
+        resetPrefixId = newSystemIri(pluginConnection, RESET_PREFIX_LOCAL_NAME);
+        iriPrefixId = newSystemIri(pluginConnection, IRI_PREFIX_LOCAL_NAME);
+        nextIRIId = newSystemIri(pluginConnection, NEXT_IRI_LOCAL_NAME);
+        nextIRIsId = newSystemIri(pluginConnection, NEXT_IRIS_LOCAL_NAME);
+        createStripedSequenceId = newSystemIri(pluginConnection, CREATE_STRIPED_LOCAL_NAME);
+        createTimeBasedSequenceId = newSystemIri(pluginConnection, CREATE_TIME_BASED_LOCAL_NAME);
+        exportId = newSystemIri(pluginConnection, EXPORT_LOCAL_NAME);
+        importId = newSystemIri(pluginConnection, IMPORT_LOCAL_NAME);
+        statePath = getDataDir().toPath().resolve("state.bin");
+        jsonStatePath = getDataDir().toPath().resolve("state.js");
+        optionsPath = getDataDir().toPath().resolve("options.js");
+        stateLog = new StateLog(getDataDir().toPath().resolve("state.log"));
+        fingerprintedSequences = new FingerprintedSequences(Integer.getInteger(MAX_FINGERPRINTS_PROPERTY,
+                FingerprintedSequences.DEFAULT_MAX_FINGERPRINTS_TO_KEEP));
+        metrics = new SequencesMetrics(sequences::size, () -> fingerprintedSequences.getRevisions().size() + 1,
+                this::stateBytes, this::getFingerprint);
+        autoCreateRules = AutoCreateRules.parse(System.getProperty(AUTO_CREATE_PROPERTY));
+        shardCount = Integer.getInteger(STATE_SHARDS_PROPERTY, StateSnapshot.DEFAULT_SHARD_COUNT);
+        if (shardCount < 1) {
+            throw new PluginException(STATE_SHARDS_PROPERTY + " must be positive: " + shardCount);
+        }
+        String storage = System.getProperty(STORAGE_PROPERTY, "snapshot");
+        if ("mapped".equals(storage)) {
+            slotFile = new SlotFile(getDataDir().toPath());
+        } else if (!"snapshot".equals(storage)) {
+            throw new PluginException(STORAGE_PROPERTY + " must be snapshot or mapped: " + storage);
+        }
+        int stripedBlockSize = Integer.getInteger(STRIPED_BLOCK_SIZE_PROPERTY,
+                NonTransactionalSequences.DEFAULT_BLOCK_SIZE);
+        if (stripedBlockSize < 1) {
+            throw new PluginException(STRIPED_BLOCK_SIZE_PROPERTY + " must be positive: " + stripedBlockSize);
+        }
+        clusterNode = Boolean.getBoolean(CLUSTER_PROPERTY);
+        if (clusterNode && System.getProperty(NODE_ID_PROPERTY) == null) {
+            throw new PluginException(NODE_ID_PROPERTY + " must be set on the nodes of a cluster");
+        }
+        int nodeId = Integer.getInteger(NODE_ID_PROPERTY, 0);
+        if (nodeId < 0 || nodeId > NonTransactionalSequences.MAX_NODE_ID) {
+            throw new PluginException(NODE_ID_PROPERTY + " must be between 0 and "
+                    + NonTransactionalSequences.MAX_NODE_ID + ": " + nodeId);
+        }
+        nonTransactionalSequences = new NonTransactionalSequences(getDataDir().toPath().resolve("striped.js"),
+                objectMapper, stripedBlockSize, nodeId, System::currentTimeMillis);
+        long start = System.nanoTime();
         readStateFromDisk(pluginConnection);
+        readNonTransactionalSequences(pluginConnection);
+        metrics.stateLoaded((System.nanoTime() - start) / 1_000_000);
+        registerMetrics();
     }
 
     @Override
     public void shutdown(ShutdownReason reason) {
-        sequencesById.clear();
-        sequencesByIRI.clear();
+        unregisterMetrics();
+        sequences.clear();
+        sequenceIndex.clear();
         fingerprintedSequences.clear();
+        touchedSequences.clear();
+        nonTransactionalSequences.clear();
+        if (slotFile != null) {
+            try {
+                slotFile.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to close the sequences slot file", e);
+            }
+            slotFile = null;
+        }
     }
 
     @Override
@@ -90,13 +292,21 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
 
     @Override
     public void transactionCommit(PluginConnection pluginConnection) {
-        if (preparedForUse) {
-            sequencesById.forEachValue(sequence -> {
-                sequence.prepare();
-                return true;
-            });
-
-            saveStateToDisk();
+        if (preparedForUse && nonTransactionalSequences.hasChanges()) {
+            try {
+                nonTransactionalSequences.prepare();
+            } catch (IOException e) {
+                throw new PluginException("Unable to save sequence state", e);
+            }
+        }
+        // Transactions that prepared the sequences but did not change any leave the state and its history as they are
+        if (preparedForUse && !touchedSequences.isEmpty()) {
+            long start = System.nanoTime();
+            addResetStatements(pluginConnection);
+            touchedSequences.prepare();
+            if (saveStateToDisk(pluginConnection)) {
+                metrics.committed(System.nanoTime() - start);
+            }
         }
     }
 
@@ -104,10 +314,15 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
     public void transactionCompleted(PluginConnection pluginConnection) {
         if (preparedForUse) {
             preparedForUse = false;
-            sequencesById.forEachValue(sequence -> {
-                sequence.commit();
-                return true;
-            });
+            savedInTransaction = false;
+            importedInTransaction = false;
+            touchedSequences.commit();
+            sequenceIndex.commit();
+            nonTransactionalSequences.commit();
+            if (slotFile != null) {
+                slotFile.commitCompleted();
+            }
+            transactionFinished(true);
         }
     }
 
@@ -115,17 +330,64 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
     public void transactionAborted(PluginConnection pluginConnection) {
         if (preparedForUse) {
             preparedForUse = false;
-            sequencesById.forEachValue(sequence -> {
-                sequence.rollback();
-                return true;
-            });
+            importedInTransaction = false;
+            transactionFinished(false);
+            boolean optionsChanged = touchedSequences.optionsChanged();
+            boolean createdOrDropped = touchedSequences.createdOrDropped();
+            touchedSequences.rollback();
+            if (createdOrDropped) {
+                // Built again from the restored sequences when next used
+                sequenceIndex.clear();
+            }
+            try {
+                nonTransactionalSequences.rollback();
+            } catch (IOException e) {
+                throw new PluginException("Unable to save sequence state", e);
+            }
+            if (savedInTransaction) {
+                // The state was already persisted, so the next commit must be based on the state before it.
+                // The persisted record stays in the log and is skipped over when the log is replayed.
+                savedInTransaction = false;
+                fingerprintedSequences.revert(fingerprintBeforeTransaction, null);
+                updateStoredFingerprint();
+                // A snapshot written by the transaction may hold its changes in any shard
+                dirtyShards.set(0, shardCount);
+                try {
+                    if (slotFile != null) {
+                        // Slots are updated in place, so the changes must be undone
+                        slotFile.undoLastCommit();
+                    }
+                    if (optionsChanged) {
+                        writeOptions(pluginConnection);
+                    }
+                } catch (IOException e) {
+                    throw new PluginException("Unable to save sequence state", e);
+                }
+            }
         }
     }
 
+    @Override
+    public RequestContext preprocess(Request request) {
+        ValueEntities requestContext = new ValueEntities();
+        requestContext.setRequest(request);
+        return requestContext;
+    }
+
     @Override
     public double estimate(long subject, long predicate, long object, long context, PluginConnection pluginConnection, RequestContext requestContext) {
-        if (subject == Entities.UNBOUND || object == Entities.BOUND) {
+        if (predicate == statsId) {
+            return subject == Entities.UNBOUND ? SequencesMetrics.METRIC_COUNT : 1;
+        }
+        if (predicate == listId) {
+            return subject == Entities.UNBOUND ? Math.max(sequences.size(), 1) : 1;
+        }
+        if (subject == Entities.UNBOUND || object == Entities.BOUND
+                || (predicate == nextValuesId || predicate == nextIRIsId) && context == Entities.UNBOUND) {
             return Double.POSITIVE_INFINITY;
+        } else if (predicate == nextValueId || predicate == nextValuesId || predicate == nextIRIId
+                || predicate == nextIRIsId) {
+            return NEXT_VALUE_ESTIMATE;
         } else {
             return 1;
         }
@@ -133,79 +395,424 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
 
     @Override
     public StatementIterator interpret(long subject, long predicate, long object, long context, PluginConnection pluginConnection, RequestContext requestContext) {
-        if (predicate == nextValueId || predicate == currentValueId) {
+        if (predicate == statsId) {
+            return statsIterator(subject, predicate, context, pluginConnection.getEntities());
+        }
+
+        if (predicate == listId) {
+            return listIterator(subject, predicate, context, pluginConnection);
+        }
+
+        if ((predicate == nextValueId || predicate == currentValueId || predicate == nextValuesId
+                || predicate == nextIRIId || predicate == nextIRIsId) && !nonTransactionalSequences.isEmpty()) {
+            boolean range = predicate == nextValuesId || predicate == nextIRIsId;
+            NonTransactionalSequences.Sequence sequence = nonTransactionalSequences.get(range ? context : subject);
+            if (sequence != null) {
+                return nonTransactionalValueIterator(sequence, subject, predicate, context, pluginConnection,
+                        requestContext);
+            }
+        }
+
+        if (predicate == currentValueId && (!preparedForUse || pluginConnection.getTransactionId() == 0)) {
+            return committedValueIterator(subject, predicate, context, pluginConnection, requestContext);
+        }
+
+        if (predicate == nextValueId || predicate == currentValueId || predicate == nextValuesId
+                || predicate == nextIRIId || predicate == nextIRIsId) {
             if (!preparedForUse || pluginConnection.getTransactionId() == 0) {
                 throw new PluginException("Sequences must be prepared before use in transaction");
             }
 
-            if (subject == 0) {
+            // nextValues is used as GRAPH <sequence> { count seq:nextValues ?value }, and nextIRIs likewise
+            boolean range = predicate == nextValuesId || predicate == nextIRIsId;
+            long sequence = range ? context : subject;
+            if (subject == 0 || sequence == 0) {
                 return StatementIterator.EMPTY;
             }
 
-            Sequence sequence = sequencesById.get(subject);
-            if (sequence == null) {
-                throw new PluginException("No such sequence: " + pluginConnection.getEntities().get(subject));
+            int slot = slot(pluginConnection, sequence);
+            if (slot == SequenceStore.NO_SLOT && predicate != currentValueId) {
+                slot = autoCreate(pluginConnection, sequence);
+            }
+            if (slot == SequenceStore.NO_SLOT) {
+                throw new PluginException("No such sequence: " + pluginConnection.getEntities().get(sequence));
+            }
+
+            String iriPrefix = null;
+            if (predicate == nextIRIId || predicate == nextIRIsId) {
+                SequenceOptions options = sequences.options(slot);
+                iriPrefix = options == null ? null : options.getIriPrefix();
+                if (iriPrefix == null) {
+                    throw new PluginException("Sequence " + pluginConnection.getEntities().get(sequence)
+                            + " has no IRI prefix to mint IRIs with");
+                }
+            }
+
+            if (range) {
+                long count = parseCount(pluginConnection, subject);
+                long reservedValue = sequences.currentValue(slot);
+                long start = System.nanoTime();
+                long first = nextValues(pluginConnection, sequence, slot, count);
+                metrics.nextValueTimed(System.nanoTime() - start);
+                transactionNextValueCalls++;
+                transactionValuesObtained += count;
+                if (sequences.currentValue(slot) != reservedValue) {
+                    touchedSequences.increment(slot);
+                }
+                return new ValueRangeIterator(subject, predicate, context, pluginConnection.getEntities(), first,
+                        count, iriPrefix);
             }
 
             long value;
-            if (predicate == nextValueId) {
-                value = sequence.nextValue();
-                // Add a statement that resets the sequence to the last obtained value (+1 because reset will subtract 1)
-                // via a statement that will preserve the semantics of not modifying the state of a plugin via a query.
-                // This statement will also be the sole sequence changing trigger when the transaction is replayed
-                // in a cluster environment.
-                pluginConnection.getRepository().addStatement((Resource) pluginConnection.getEntities().get(subject),
-                        RESET_IRI, SimpleValueFactory.getInstance().createLiteral(value + 1));
+            if (predicate == nextValueId || predicate == nextIRIId) {
+                long reservedValue = sequences.currentValue(slot);
+                long start = System.nanoTime();
+                value = nextValues(pluginConnection, sequence, slot, 1);
+                metrics.nextValueTimed(System.nanoTime() - start);
+                transactionNextValueCalls++;
+                transactionValuesObtained++;
+                if (sequences.currentValue(slot) != reservedValue) {
+                    touchedSequences.increment(slot);
+                }
             } else {
-                value = sequence.currentValue();
+                value = sequences.lastValue(slot);
+            }
+
+            if (iriPrefix != null) {
+                return new ValueRangeIterator(subject, predicate, context, pluginConnection.getEntities(), value, 1,
+                        iriPrefix);
             }
 
             return StatementIterator.create(subject, predicate,
-                    pluginConnection.getEntities()
-                            .put(SimpleValueFactory.getInstance().createLiteral(value), Entities.Scope.REQUEST), context);
+                    ValueEntities.literal(requestContext, pluginConnection.getEntities(), value), context);
         }
 
         return null;
     }
 
+    /**
+     * Obtains a range of consecutive values from a sequence.
+     *
+     * @return the first value of the range
+     */
+    private long nextValues(PluginConnection pluginConnection, long sequence, int slot, long count) {
+        try {
+            return sequences.nextValues(slot, count);
+        } catch (ArithmeticException e) {
+            throw new PluginException("Sequence " + pluginConnection.getEntities().get(sequence)
+                    + " has no more values");
+        }
+    }
+
+    /**
+     * Returns values of a striped or time-based sequence, in any query. The current value of such a sequence is its
+     * high-water mark, i.e. the largest value that may have been handed out.
+     */
+    private StatementIterator nonTransactionalValueIterator(NonTransactionalSequences.Sequence sequence,
+                                                            long subject, long predicate, long context,
+                                                            PluginConnection pluginConnection,
+                                                            RequestContext requestContext) {
+        if (predicate == nextIRIId || predicate == nextIRIsId) {
+            throw new PluginException("Sequence " + sequence.iri + " has no IRI prefix to mint IRIs with");
+        }
+        if (predicate != currentValueId && sequence instanceof NonTransactionalSequences.StripedSequence) {
+            // A striped sequence created before the node joined a cluster
+            checkStripedSupported(sequence.iri);
+        }
+        if (predicate == nextValuesId) {
+            long count = parseCount(pluginConnection, subject);
+            long start = System.nanoTime();
+            long first = sequence.nextValues(count);
+            metrics.nextValueTimed(System.nanoTime() - start);
+            metrics.nonTransactionalValuesObtained(count);
+            return new ValueRangeIterator(subject, predicate, context, pluginConnection.getEntities(), first, count);
+        }
+
+        long value;
+        if (predicate == nextValueId) {
+            long start = System.nanoTime();
+            value = sequence.nextValue();
+            metrics.nextValueTimed(System.nanoTime() - start);
+            metrics.nonTransactionalValuesObtained(1);
+        } else {
+            value = sequence.highWaterMark();
+        }
+        return StatementIterator.create(subject, predicate,
+                ValueEntities.literal(requestContext, pluginConnection.getEntities(), value), context);
+    }
+
+    /**
+     * Rejects striped sequences on cluster nodes. Every node hands out values from its own copy of the high-water
+     * mark, so the nodes serving read-only queries would hand out the same values.
+     */
+    private void checkStripedSupported(String iri) {
+        if (clusterNode) {
+            throw new PluginException("Striped sequence " + iri + " is not supported in a cluster");
+        }
+    }
+
+    /**
+     * Creates a sequence on first use if its IRI matches the auto-create rules.
+     *
+     * @return the slot of the created sequence or {@link SequenceStore#NO_SLOT} if the sequence must be created
+     * explicitly
+     */
+    private int autoCreate(PluginConnection pluginConnection, long id) {
+        if (autoCreateRules.isEmpty()) {
+            return SequenceStore.NO_SLOT;
+        }
+        Value value = pluginConnection.getEntities().get(id);
+        Long startValue = value instanceof IRI ? autoCreateRules.startValue(value.stringValue()) : null;
+        if (startValue == null || nonTransactionalSequences.exists(value.stringValue())) {
+            return SequenceStore.NO_SLOT;
+        }
+
+        String iri = value.stringValue();
+        id = pluginConnection.getEntities().put(value, Entities.Scope.SYSTEM);
+        int slot = sequences.add(id, Fingerprints.ofIRI(iri), startValue - 1);
+        touchedSequences.autoCreate(slot, iri);
+        sequenceIndex.add(iri, slot);
+
+        getLogger().debug("Created sequence {} on first use", value);
+        return slot;
+    }
+
+    /**
+     * Returns the sequences whose IRI starts with the IRI given as context, or all sequences if the context is not
+     * bound, with their values. Within a transaction that uses the sequences the values are the current values in
+     * the transaction; otherwise they are the committed values, as returned by {@link #committedValueIterator}.
+     */
+    private StatementIterator listIterator(long subject, long predicate, long context,
+                                           PluginConnection pluginConnection) {
+        Entities entities = pluginConnection.getEntities();
+        String prefix = context == Entities.UNBOUND ? "" : entities.get(context).stringValue();
+        boolean inTransaction = preparedForUse && pluginConnection.getTransactionId() != 0;
+
+        Iterator<Map.Entry<String, Integer>> matching;
+        if (subject != Entities.UNBOUND) {
+            Value subjectValue = entities.get(subject);
+            int slot = inTransaction ? slot(pluginConnection, subject) : SequenceStore.NO_SLOT;
+            matching = subjectValue instanceof IRI && subjectValue.stringValue().startsWith(prefix)
+                    ? Collections.singletonMap(subjectValue.stringValue(), slot).entrySet().iterator()
+                    : Collections.emptyIterator();
+        } else {
+            matching = sequenceIndex.withPrefix(prefix, iriResolver(pluginConnection)).entrySet().iterator();
+        }
+
+        // The fields of the iterator shadow the parameters
+        long listPredicate = predicate;
+        long listContext = context;
+        return new StatementIterator() {
+            @Override
+            public boolean next() {
+                while (matching.hasNext()) {
+                    Map.Entry<String, Integer> entry = matching.next();
+                    long value;
+                    if (inTransaction) {
+                        int slot = entry.getValue();
+                        if (slot == SequenceStore.NO_SLOT) {
+                            continue;
+                        }
+                        long id = sequences.id(slot);
+                        this.subject = id != 0 ? id : entities.put(
+                                SimpleValueFactory.getInstance().createIRI(entry.getKey()), Entities.Scope.REQUEST);
+                        value = sequences.lastValue(slot);
+                    } else {
+                        IRI iri = SimpleValueFactory.getInstance().createIRI(entry.getKey());
+                        long id = entities.resolve(iri);
+                        Long committedValue = sequences.readCommittedValue(id, entry::getKey);
+                        if (committedValue == null) {
+                            // Removed meanwhile
+                            continue;
+                        }
+                        this.subject = id != 0 ? id : entities.put(iri, Entities.Scope.REQUEST);
+                        value = committedValue;
+                    }
+                    this.predicate = listPredicate;
+                    this.object = entities.put(SimpleValueFactory.getInstance().createLiteral(value),
+                            Entities.Scope.REQUEST);
+                    this.context = listContext;
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Returns the last committed value of a sequence outside a transaction that uses the sequences. The value is read
+     * without waiting for the transaction that is currently using the sequences and is not affected by it.
+     */
+    private StatementIterator committedValueIterator(long subject, long predicate, long context,
+                                                     PluginConnection pluginConnection, RequestContext requestContext) {
+        if (subject == 0) {
+            return StatementIterator.EMPTY;
+        }
+
+        Entities entities = pluginConnection.getEntities();
+        Long value = sequences.readCommittedValue(subject, () -> entities.get(subject).stringValue());
+        if (value == null) {
+            throw new PluginException("No such sequence: " + entities.get(subject));
+        }
+
+        return StatementIterator.create(subject, predicate,
+                ValueEntities.literal(requestContext, entities, value), context);
+    }
+
     @Override
     public long[] getPredicatesToListenFor() {
-        return new long[] {createSequenceId, dropSequenceId, prepareSequenceId, resetSequenceId};
+        return new long[] {createSequenceId, dropSequenceId, prepareSequenceId, resetSequenceId, cacheSequenceId,
+                dropPrefixId, resetPrefixId, iriPrefixId, createStripedSequenceId, createTimeBasedSequenceId, exportId,
+                importId};
     }
 
     @Override
     public boolean interpretUpdate(long subject, long predicate, long object, long context, boolean isAddition, boolean isExplicit, PluginConnection pluginConnection) {
         if (predicate == createSequenceId) {
             Value subjectValue = pluginConnection.getEntities().get(subject);
+            if (addingStatements) {
+                // Already created on first use
+                return true;
+            }
 
             // Convert request-scoped ID to system-scope
             subject = pluginConnection.getEntities().put(subjectValue, Entities.Scope.SYSTEM);
-            if (sequencesById.contains(subject)) {
+            String iri = subjectValue.stringValue();
+            if (slot(pluginConnection, subject) != SequenceStore.NO_SLOT || nonTransactionalSequences.exists(iri)) {
                 throw new PluginException("Sequence " + subjectValue + " already exists");
             }
 
-            Sequence sequence = new Sequence(parseNumber(pluginConnection, object));
-            sequencesById.put(subject, sequence);
-            sequencesByIRI.put(subjectValue.stringValue(), sequence);
+            int slot = sequences.add(subject, Fingerprints.ofIRI(iri), parseNumber(pluginConnection, object));
+            touchedSequences.create(slot, iri);
+            sequenceIndex.add(iri, slot);
 
             getLogger().debug("Created sequence {}", subjectValue);
+        } else if (predicate == createStripedSequenceId || predicate == createTimeBasedSequenceId) {
+            Value subjectValue = pluginConnection.getEntities().get(subject);
+            subject = pluginConnection.getEntities().put(subjectValue, Entities.Scope.SYSTEM);
+            String iri = subjectValue.stringValue();
+            if (slot(pluginConnection, subject) != SequenceStore.NO_SLOT || nonTransactionalSequences.exists(iri)) {
+                throw new PluginException("Sequence " + subjectValue + " already exists");
+            }
+
+            if (predicate == createStripedSequenceId) {
+                checkStripedSupported(iri);
+                nonTransactionalSequences.createStriped(subject, iri, parseNumber(pluginConnection, object));
+                getLogger().debug("Created striped sequence {}", subjectValue);
+            } else {
+                nonTransactionalSequences.createTimeBased(subject, iri);
+                getLogger().debug("Created time-based sequence {}", subjectValue);
+            }
         } else if (predicate == dropSequenceId) {
             Value subjectValue = pluginConnection.getEntities().get(subject);
-            sequencesById.remove(subject);
-            sequencesByIRI.remove(subjectValue.stringValue());
+            if (!nonTransactionalSequences.drop(subjectValue.stringValue())) {
+                dropSequence(slot(pluginConnection, subject), subjectValue.stringValue());
+            }
 
             getLogger().debug("Removed sequence {}", subjectValue);
+        } else if (predicate == dropPrefixId) {
+            String prefix = pluginConnection.getEntities().get(subject).stringValue();
+            int count = 0;
+            // The index tolerates changes while iterating over it
+            for (Map.Entry<String, Integer> entry : sequenceIndex.withPrefix(prefix, iriResolver(pluginConnection))
+                    .entrySet()) {
+                if (entry.getValue() != SequenceStore.NO_SLOT) {
+                    dropSequence(entry.getValue(), entry.getKey());
+                    count++;
+                }
+            }
+
+            getLogger().debug("Removed {} sequences with prefix {}", count, prefix);
+        } else if (predicate == resetPrefixId) {
+            String prefix = pluginConnection.getEntities().get(subject).stringValue();
+            long value = parseNumber(pluginConnection, object);
+            int count = 0;
+            for (int slot : sequenceIndex.withPrefix(prefix, iriResolver(pluginConnection)).values()) {
+                if (slot != SequenceStore.NO_SLOT) {
+                    sequences.reset(slot, value);
+                    touchedSequences.touch(slot);
+                    count++;
+                }
+            }
+
+            getLogger().debug("Set {} sequences with prefix {} to value {}", count, prefix, value);
+        } else if (predicate == resetSequenceId && addingStatements) {
+            // Added by addResetStatements(), the sequence already has the value and is touched. Counted here, once
+            // the statement has reached the transaction.
+            metrics.resetStatementsAdded(1);
+            return true;
         } else if (predicate == resetSequenceId) {
             Value subjectValue = pluginConnection.getEntities().get(subject);
-            Sequence sequence = sequencesById.get(subject);
-            if (sequence == null) {
+            int slot = slot(pluginConnection, subject);
+            if (slot == SequenceStore.NO_SLOT && nonTransactionalSequences.exists(subjectValue.stringValue())) {
+                throw new PluginException("Sequence " + subjectValue + " is not transactional and cannot be reset");
+            }
+            if (slot == SequenceStore.NO_SLOT) {
                 throw new PluginException("Sequence " + subjectValue + " does not exist");
             }
 
             long value = parseNumber(pluginConnection, object);
-            sequence.setValue(value);
+            sequences.reset(slot, value);
+            touchedSequences.touch(slot);
 
             getLogger().debug("Set sequence {} to value {}", subjectValue, value);
+        } else if (predicate == cacheSequenceId) {
+            Value subjectValue = pluginConnection.getEntities().get(subject);
+            int slot = slot(pluginConnection, subject);
+            if (slot == SequenceStore.NO_SLOT) {
+                throw new PluginException("Sequence " + subjectValue + " does not exist");
+            }
+
+            long cacheSize = parseNumber(pluginConnection, object) + 1;
+            if (cacheSize < 0 || cacheSize > Integer.MAX_VALUE) {
+                throw new PluginException("Provided sequence cache size is out of range: " + cacheSize);
+            }
+            touchedSequences.setOptions(slot,
+                    SequenceOptions.withCacheSize(sequences.options(slot), (int) cacheSize));
+
+            getLogger().debug("Set sequence {} cache size to {}", subjectValue, cacheSize);
+        } else if (predicate == iriPrefixId) {
+            Value subjectValue = pluginConnection.getEntities().get(subject);
+            int slot = slot(pluginConnection, subject);
+            if (slot == SequenceStore.NO_SLOT) {
+                throw new PluginException("Sequence " + subjectValue + " does not exist");
+            }
+
+            // An empty prefix stops minting IRIs
+            String iriPrefix = pluginConnection.getEntities().get(object).stringValue();
+            if (!iriPrefix.isEmpty() && iriPrefix.indexOf(':') < 0) {
+                throw new PluginException("Provided IRI prefix is not an absolute IRI: " + iriPrefix);
+            }
+            touchedSequences.setOptions(slot,
+                    SequenceOptions.withIriPrefix(sequences.options(slot), iriPrefix.isEmpty() ? null : iriPrefix));
+
+            getLogger().debug("Set sequence {} IRI prefix to {}", subjectValue, iriPrefix);
+        } else if (predicate == exportId) {
+            Path path = transferPath(pluginConnection, object);
+            try {
+                Files.createDirectories(path.getParent());
+                long count = SequenceFile.write(path, sequences, iriResolver(pluginConnection));
+                getLogger().info("Exported {} sequences to {}", count, path);
+            } catch (IOException e) {
+                throw new PluginException("Unable to export sequences to " + path, e);
+            }
+        } else if (predicate == importId) {
+            if (clusterNode) {
+                // The other nodes replay the import statement and would not find the file
+                throw new PluginException("Importing sequences is not supported in a cluster");
+            }
+            Path path = transferPath(pluginConnection, object);
+            try {
+                long count = SequenceFile.read(path, (iri, value) -> importSequence(pluginConnection, iri, value));
+                importedInTransaction = true;
+                getLogger().info("Imported {} sequences from {}", count, path);
+            } catch (IOException e) {
+                throw new PluginException("Unable to import sequences from " + path, e);
+            }
         } else if (predicate == prepareSequenceId) {
             getLogger().debug("Prepared sequences");
         }
@@ -216,12 +823,76 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
         return true;
     }
 
+    /**
+     * Creates a sequence or resets an existing one to the given value in the current transaction. New sequences are
+     * added unbound, so importing does not touch the entity pool, see {@link SequenceStore#addUnbound}. Like any change
+     * in a transaction, every imported sequence is tracked until commit and its previous value is kept in the revision
+     * of the transaction, so the memory of an import grows with the number of sequences in the file.
+     *
+     * @param value the last value handed out by the sequence
+     */
+    private void importSequence(PluginConnection pluginConnection, String iri, long value) {
+        int slot = sequences.unboundSlot(iri);
+        if (slot == SequenceStore.NO_SLOT) {
+            long id = pluginConnection.getEntities().resolve(SimpleValueFactory.getInstance().createIRI(iri));
+            slot = id == 0 ? SequenceStore.NO_SLOT : sequences.slot(id);
+        }
+        if (slot != SequenceStore.NO_SLOT) {
+            sequences.reset(slot, value);
+            touchedSequences.touch(slot);
+            return;
+        }
+
+        if (iri.indexOf(':') < 0) {
+            throw new PluginException("Imported sequence IRI is not an absolute IRI: " + iri);
+        }
+        if (nonTransactionalSequences.exists(iri)) {
+            throw new PluginException("Sequence " + iri + " already exists");
+        }
+        slot = sequences.addUnbound(iri, Fingerprints.ofIRI(iri), value);
+        touchedSequences.create(slot, iri);
+        sequenceIndex.add(iri, slot);
+    }
+
+    /**
+     * Returns the file of seq:export and seq:import with the given name, which must be in the transfer directory.
+     */
+    private Path transferPath(PluginConnection pluginConnection, long nameId) {
+        String name = pluginConnection.getEntities().get(nameId).stringValue();
+        Path directory = getDataDir().toPath().toAbsolutePath().normalize().resolve(TRANSFER_DIRECTORY);
+        Path path = directory.resolve(name).normalize();
+        if (name.isEmpty() || !directory.equals(path.getParent())) {
+            throw new PluginException("Provided file name is not a file in " + directory + ": " + name);
+        }
+        return path;
+    }
+
+    /**
+     * Drops a sequence in the current transaction.
+     *
+     * @param slot the slot of the sequence or {@link SequenceStore#NO_SLOT} if there is no such sequence
+     */
+    private void dropSequence(int slot, String iri) {
+        touchedSequences.drop(slot, iri);
+        if (slot != SequenceStore.NO_SLOT) {
+            sequences.remove(slot);
+            sequenceIndex.remove(iri);
+        }
+    }
+
     @Override
     public long getFingerprint() {
-        if (sequencesByIRI.isEmpty()) {
-            return 0;
-        }
-        return sequencesByIRI.hashCode();
+        return storedFingerprint != 0 ? storedFingerprint : sequences.fingerprint();
+    }
+
+    /**
+     * Reports the fingerprint the current state was stored under, which GraphDB recorded, if it differs from the
+     * fingerprint of the sequences, i.e. if the state was stored by an earlier version of the plugin that computed
+     * fingerprints with a 32-bit hash. The sequences are fingerprinted as usual from the first change on.
+     */
+    private void updateStoredFingerprint() {
+        long fingerprint = fingerprintedSequences.getFingerprint();
+        storedFingerprint = fingerprint != sequences.fingerprint() ? fingerprint : 0;
     }
 
     @Override
@@ -229,6 +900,107 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
         expectedFingerprint = fingerprint;
     }
 
+    /**
+     * Returns the slot of the sequence with the given entity ID, binding the sequence first if it was restored
+     * unbound, or {@link SequenceStore#NO_SLOT} if there is no such sequence.
+     */
+    private int slot(PluginConnection pluginConnection, long id) {
+        int slot = sequences.slot(id);
+        if (slot == SequenceStore.NO_SLOT && sequences.hasUnbound()) {
+            Value value = pluginConnection.getEntities().get(id);
+            if (value instanceof IRI) {
+                slot = sequences.bind(value.stringValue(),
+                        pluginConnection.getEntities().put(value, Entities.Scope.SYSTEM));
+            }
+        }
+        return slot;
+    }
+
+    private void transactionFinished(boolean committed) {
+        metrics.transactionFinished(committed, transactionNextValueCalls, transactionValuesObtained);
+        transactionNextValueCalls = 0;
+        transactionValuesObtained = 0;
+    }
+
+    /**
+     * Returns the metrics as statements of the form {@code <seq:metricName> seq:stats value}, or only the given
+     * metric if the subject is bound.
+     */
+    private StatementIterator statsIterator(long subject, long predicate, long context, Entities entities) {
+        Map<String, Long> stats = metrics.snapshot();
+        if (subject != Entities.UNBOUND) {
+            Value subjectValue = entities.get(subject);
+            Long value = subjectValue == null || !subjectValue.stringValue().startsWith(NS) ? null
+                    : stats.get(subjectValue.stringValue().substring(NS.length()));
+            return value == null ? StatementIterator.EMPTY : StatementIterator.create(subject, predicate,
+                    entities.put(SimpleValueFactory.getInstance().createLiteral(value), Entities.Scope.REQUEST),
+                    context);
+        }
+
+        long[] subjects = new long[stats.size()];
+        long[] objects = new long[stats.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> stat : stats.entrySet()) {
+            subjects[i] = entities.put(SimpleValueFactory.getInstance().createIRI(NS, stat.getKey()),
+                    Entities.Scope.REQUEST);
+            objects[i++] = entities.put(SimpleValueFactory.getInstance().createLiteral(stat.getValue()),
+                    Entities.Scope.REQUEST);
+        }
+        // The fields of the iterator shadow the parameters
+        long statsPredicate = predicate;
+        long statsContext = context;
+        return new StatementIterator() {
+            private int next;
+
+            @Override
+            public boolean next() {
+                if (next == subjects.length) {
+                    return false;
+                }
+                this.subject = subjects[next];
+                this.predicate = statsPredicate;
+                this.object = objects[next++];
+                this.context = statsContext;
+                return true;
+            }
+
+            @Override
+            public void close() {
+                next = subjects.length;
+            }
+        };
+    }
+
+    private long stateBytes() {
+        try {
+            return slotFile != null ? slotFile.size() : snapshotSize + stateLog.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void registerMetrics() {
+        try {
+            metricsName = new ObjectName("com.ontotext.graphdb.plugins:type=Sequences,dataDir="
+                    + ObjectName.quote(getDataDir().getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            getLogger().warn("Unable to register the sequences metrics MBean", e);
+            metricsName = null;
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                getLogger().warn("Unable to unregister the sequences metrics MBean", e);
+            }
+            metricsName = null;
+        }
+    }
+
     private long newSystemIri(PluginConnection pluginConnection, String localName) {
         return pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createIRI(NS, localName), Entities.Scope.SYSTEM);
     }
@@ -248,42 +1020,270 @@ public class SequencesPlugin extends PluginBase implements PluginTransactionList
         }
     }
 
-    private void saveStateToDisk() {
+    /**
+     * Adds a statement for each sequence incremented by the transaction that resets it to its last obtained value,
+     * or the end of the reserved block for cached sequences (+1 because reset will subtract 1). This preserves the
+     * semantics of not modifying the state of a plugin via a query, and these statements are the sole sequence
+     * changing trigger when the transaction is replayed in a cluster environment. Only the last value matters for
+     * the replay, so a single statement per sequence is added regardless of how many values were obtained.
+     *
+     * The statements are added from {@link #transactionCommit(PluginConnection)}, which is called before the
+     * repository commits the transaction, so they are part of the committed transaction like the statements added
+     * while a query runs, and reach {@link #interpretUpdate} like any other update.
+     *
+     * Sequences created on first use get a create statement before the reset statement, for the same reason.
+     */
+    private void addResetStatements(PluginConnection pluginConnection) {
+        int[] autoCreated = touchedSequences.takeAutoCreated();
+        int[] incremented = touchedSequences.takeIncremented();
+        addingStatements = true;
+        try {
+            for (int slot : autoCreated) {
+                pluginConnection.getRepository().addStatement(
+                        (Resource) pluginConnection.getEntities().get(sequences.id(slot)), CREATE_IRI,
+                        SimpleValueFactory.getInstance().createLiteral(sequences.currentValue(slot) + 1));
+            }
+            for (int slot : incremented) {
+                pluginConnection.getRepository().addStatement(
+                        (Resource) pluginConnection.getEntities().get(sequences.id(slot)), RESET_IRI,
+                        SimpleValueFactory.getInstance().createLiteral(sequences.currentValue(slot) + 1));
+            }
+        } finally {
+            addingStatements = false;
+        }
+    }
+
+    private long parseCount(PluginConnection pluginConnection, long valueId) {
+        Value value = pluginConnection.getEntities().get(valueId);
+        if (value instanceof Literal) {
+            try {
+                long count = ((Literal) value).longValue();
+                if (count > 0) {
+                    return count;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+        }
+        throw new PluginException("Provided number of values is not a positive number: " + value);
+    }
+
+    private LongFunction<String> iriResolver(PluginConnection pluginConnection) {
+        return id -> pluginConnection.getEntities().get(id).stringValue();
+    }
+
+    /**
+     * Persists the changes made by the transaction.
+     *
+     * @return false if the transaction did not change the state, so there was nothing to persist
+     */
+    private boolean saveStateToDisk(PluginConnection pluginConnection) {
         try {
-            long fingerprint = getFingerprint();
-            TreeMap<String, Sequence> sequencesByIRICopy = new TreeMap<>();
-            copySequenceMap(sequencesByIRI, sequencesByIRICopy);
-            fingerprintedSequences.put(fingerprint, sequencesByIRICopy);
+            long fingerprint = sequences.fingerprint();
+            Map<String, Long> changes = new HashMap<>();
+            Map<String, Long> previousValues = new HashMap<>();
+            touchedSequences.collectChanges(iriResolver(pluginConnection), changes, previousValues);
+            boolean optionsChanged = touchedSequences.optionsChanged();
+            if (changes.isEmpty() && !optionsChanged) {
+                return false;
+            }
+
+            fingerprintBeforeTransaction = fingerprintedSequences.getFingerprint();
+            if (!changes.isEmpty()) {
+                fingerprintedSequences.add(fingerprint, previousValues);
+                storedFingerprint = 0;
+            }
+            savedInTransaction = true;
+
+            long start = System.nanoTime();
             Files.createDirectories(statePath.getParent());
-            objectMapper.writeValue(statePath.toFile(), fingerprintedSequences);
+            if (optionsChanged) {
+                writeOptions(pluginConnection);
+            }
+            if (changes.isEmpty()) {
+                // Only the options changed
+                return true;
+            }
+            if (slotFile != null) {
+                long bytes = slotFile.commit(fingerprintBeforeTransaction, fingerprint, changes, previousValues,
+                        fingerprintedSequences);
+                metrics.persisted(bytes, System.nanoTime() - start, false);
+                return true;
+            }
+            markDirty(changes.keySet());
+            if (importedInTransaction || stateLog.size() > Math.max(snapshotSize, MIN_LOG_SIZE_TO_COMPACT)) {
+                long bytes = writeSnapshot(pluginConnection, false);
+                metrics.persisted(bytes, System.nanoTime() - start, true);
+            } else {
+                int bytes = stateLog.append(fingerprintBeforeTransaction, fingerprint, changes);
+                metrics.persisted(bytes, System.nanoTime() - start, false);
+            }
+            return true;
         } catch (IOException e) {
             throw new PluginException("Unable to save sequence state", e);
         }
     }
 
+    /**
+     * Writes a snapshot and discards the state log, or rewrites the whole slot file if the state is persisted in one.
+     * The state in the other format, if any, is deleted.
+     *
+     * @param allShards true to write all shards, otherwise only the shards changed since the previous snapshot are
+     *                  written, unless that snapshot had a different number of shards
+     * @return the number of bytes written
+     */
+    private long writeSnapshot(PluginConnection pluginConnection, boolean allShards) throws IOException {
+        if (slotFile != null) {
+            long bytes = slotFile.write(sequences, iriResolver(pluginConnection), fingerprintedSequences);
+            StateSnapshot.delete(statePath);
+            stateLog.truncate();
+            Files.deleteIfExists(jsonStatePath);
+            snapshotSize = 0;
+            storedShardCount = 0;
+            return bytes;
+        }
+
+        BitSet shards = allShards || storedShardCount != shardCount ? null : dirtyShards;
+        long bytes = StateSnapshot.write(statePath, sequences, iriResolver(pluginConnection), fingerprintedSequences,
+                shardCount, shards);
+        storedShardCount = shardCount;
+        snapshotSize = StateSnapshot.size(statePath);
+        // The snapshot must be complete before the log is discarded
+        stateLog.truncate();
+        dirtyShards.clear();
+        Files.deleteIfExists(jsonStatePath);
+        SlotFile.delete(statePath.getParent());
+        return bytes;
+    }
+
+    private void markDirty(Collection<String> iris) {
+        for (String iri : iris) {
+            dirtyShards.set(StateSnapshot.shard(Fingerprints.ofIRI(iri), shardCount));
+        }
+    }
+
+    /**
+     * Writes the options of all sequences that have options (options.js). Options are not part of the fingerprinted
+     * state; they are written only when changed and applied to whichever sequences exist when the state is restored.
+     */
+    private void writeOptions(PluginConnection pluginConnection) throws IOException {
+        Map<String, SequenceOptions> storedOptions = new TreeMap<>();
+        LongFunction<String> iriResolver = iriResolver(pluginConnection);
+        sequences.forEachSlot(slot -> {
+            SequenceOptions options = sequences.options(slot);
+            if (options != null) {
+                storedOptions.put(sequences.iri(slot, iriResolver), options);
+            }
+        });
+        Path tempPath = optionsPath.resolveSibling(optionsPath.getFileName() + ".tmp");
+        objectMapper.writeValue(tempPath.toFile(), storedOptions);
+        Files.move(tempPath, optionsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the striped and time-based sequences. They are few, so they are bound to their entity IDs right away.
+     */
+    private void readNonTransactionalSequences(PluginConnection pluginConnection) {
+        try {
+            nonTransactionalSequences.read(iri -> pluginConnection.getEntities().put(
+                    SimpleValueFactory.getInstance().createIRI(iri), Entities.Scope.SYSTEM));
+        } catch (IOException e) {
+            throw new PluginException("Unable to restore sequences from disk", e);
+        }
+    }
+
     private void readStateFromDisk(PluginConnection pluginConnection) {
-        if (Files.exists(statePath)) {
-            try {
-                fingerprintedSequences.putAll(objectMapper.readValue(statePath.toFile(), FingerprintedSequences.class));
-            } catch (IOException e) {
-                throw new PluginException("Unable to restore sequences from disk", e);
+        Map<String, Long> storedSequences = new HashMap<>();
+        // Set if the stored state is in a different format or an interrupted commit was undone
+        boolean rewriteState = false;
+        Map<String, SequenceOptions> storedOptions = new HashMap<>();
+        try {
+            if (Files.exists(optionsPath)) {
+                storedOptions.putAll(objectMapper.readValue(optionsPath.toFile(),
+                        new TypeReference<Map<String, SequenceOptions>>() {}));
             }
+            snapshotSize = 0;
+            storedShardCount = 0;
+            dirtyShards.clear();
+            if (SlotFile.exists(statePath.getParent())) {
+                SlotFile storedSlotFile = slotFile != null ? slotFile : new SlotFile(statePath.getParent());
+                try {
+                    rewriteState = storedSlotFile.read(storedSequences, fingerprintedSequences) || slotFile == null;
+                } finally {
+                    if (storedSlotFile != slotFile) {
+                        storedSlotFile.close();
+                    }
+                }
+            } else if (Files.exists(statePath)) {
+                storedShardCount = StateSnapshot.read(statePath, storedSequences, fingerprintedSequences);
+                snapshotSize = StateSnapshot.size(statePath);
+                rewriteState = slotFile != null;
+            } else if (Files.exists(jsonStatePath)) {
+                JsonStateSnapshot.read(objectMapper, jsonStatePath, storedSequences, fingerprintedSequences);
+                rewriteState = true;
+            }
+            // The state log is not used with the slot file
+            rewriteState |= slotFile != null && stateLog.size() != 0;
+            // Apply the changes committed after the snapshot was written. Each record is applied on top of the state
+            // it was based on, which may be an older fingerprint if a transaction was reverted.
+            stateLog.replay((previousFingerprint, fingerprint, changes) -> {
+                if (previousFingerprint != fingerprintedSequences.getFingerprint()) {
+                    // Reverting may change sequences in any shard
+                    dirtyShards.set(0, shardCount);
+                }
+                if (!fingerprintedSequences.revert(previousFingerprint, storedSequences)) {
+                    getLogger().warn("Skipping sequence state log record based on unknown fingerprint {}",
+                            previousFingerprint);
+                    return;
+                }
+
+                Map<String, Long> previousValues = new HashMap<>();
+                changes.forEach((iri, value) -> previousValues.put(iri,
+                        value == null ? storedSequences.remove(iri) : storedSequences.put(iri, value)));
+                fingerprintedSequences.add(fingerprint, previousValues);
+                markDirty(changes.keySet());
+            });
+        } catch (IOException e) {
+            throw new PluginException("Unable to restore sequences from disk", e);
         }
+
+        long newestFingerprint = fingerprintedSequences.getFingerprint();
         if (expectedFingerprint != 0) {
-            TreeMap<String, Sequence> storedSequencesByIRI = fingerprintedSequences.get(expectedFingerprint);
-            if (storedSequencesByIRI == null) {
+            if (!fingerprintedSequences.revert(expectedFingerprint, storedSequences)) {
                 throw new PluginException("Expected sequences fingerprint not found in stored state");
             }
 
-            copySequenceMap(storedSequencesByIRI, sequencesByIRI);
-            sequencesByIRI.forEach((iri, sequence) -> {
-                long id = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createIRI(iri), Entities.Scope.SYSTEM);
-                sequencesById.put(id, sequence);
+            // Lazily bound sequences get their entity ID on first use, so restoring does not touch the entity pool
+            boolean lazyBinding = Boolean.parseBoolean(System.getProperty(LAZY_BINDING_PROPERTY, "true"));
+            storedSequences.forEach((iri, value) -> {
+                int slot;
+                if (lazyBinding) {
+                    slot = sequences.addUnbound(iri, Fingerprints.ofIRI(iri), value);
+                } else {
+                    long id = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createIRI(iri), Entities.Scope.SYSTEM);
+                    slot = sequences.add(id, Fingerprints.ofIRI(iri), value);
+                }
+                SequenceOptions options = storedOptions.get(iri);
+                if (options != null) {
+                    sequences.setOptions(slot, options);
+                }
             });
+            // The restored sequences are committed
+            sequences.commit();
+        } else if (!fingerprintedSequences.revert(0, null)) {
+            fingerprintedSequences.clear();
         }
-    }
+        updateStoredFingerprint();
 
-    private void copySequenceMap(TreeMap<String, Sequence> sourceMap, TreeMap<String, Sequence> targetMap) {
-        sourceMap.forEach((iri, sequence) -> targetMap.put(iri, sequence.copy()));
+        if (fingerprintedSequences.getFingerprint() != newestFingerprint || rewriteState
+                || slotFile != null && !slotFile.isOpen()) {
+            // The newest stored state was reverted or is in another format, start the stored state anew from the
+            // restored one
+            try {
+                writeSnapshot(pluginConnection, true);
+            } catch (IOException e) {
+                throw new PluginException("Unable to save sequence state", e);
+            }
+        }
     }
 }
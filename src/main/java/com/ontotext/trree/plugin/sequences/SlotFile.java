@@ -0,0 +1,618 @@
+package com.ontotext.trree.plugin.sequences;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the plugin state in place, as an alternative to the snapshot and the state log. Every sequence owns a fixed
+ * slot of the slot file, so a commit writes only the slots of the changed sequences and its cost does not depend on
+ * the number of sequences. The slots are written with positional writes rather than through a mapping, so a file that
+ * is truncated or replaced fails with an IOException instead of a SIGBUS and no file stays locked on Windows once it
+ * is closed.
+ *
+ * This storage does not make startup faster than the binary snapshot: restoring the state reads the whole slot file
+ * and the whole index to fill the store with the IRIs and values of all sequences, so its cost grows with the number
+ * of sequences as with the snapshot. Only commits are faster.
+ *
+ * The state of a generation G is kept in three files:
+ * <pre>
+ * slots-G.bin    header: magic, version, fingerprint (8 bytes), padded to {@value #HEADER_SIZE} bytes
+ *                slots:  value (8 bytes)
+ * slots-G.idx    append-only records that assign IRIs to slots: slot, IRI length (-1 frees the slot), IRI, CRC32
+ * slots-G.undo   a {@link StateLog} whose records hold the previous values of the sequences changed by each commit
+ * </pre>
+ * The undo records link each fingerprint to the preceding one and hold the history of {@link FingerprintedSequences},
+ * so the state can be reverted to a recent fingerprint as with the snapshot.
+ *
+ * A commit appends its undo record, then the index records of the created and dropped sequences, then writes the slots
+ * and finally the fingerprint in the header, forcing each step to the storage device. Undo records whose fingerprint
+ * does not match the header belong to a commit interrupted by a crash and are undone when the state is read.
+ *
+ * The state is rewritten as a new generation when it is reverted at startup or migrated from the snapshot. The slot
+ * file of a generation is written last, so a generation is complete once its slot file exists.
+ */
+final class SlotFile implements Closeable {
+    private static final int MAGIC = 0x5345514D; // "SEQM"
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int FINGERPRINT_OFFSET = 8;
+    private static final int SLOT_SIZE = 8;
+    private static final int MIN_CAPACITY = 1024;
+    // The slot file is read into a single buffer, which is limited to 2 GB
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+    private static final int FREED = -1;
+
+    /**
+     * The undo records of transactions older than the kept history are discarded once the undo log reaches this size.
+     */
+    private static final long MIN_UNDO_SIZE_TO_COMPACT = 64 * 1024;
+
+    private static final String PREFIX = "slots-";
+
+    private final Path directory;
+
+    private int generation;
+    private FileChannel slotChannel;
+    private int capacity;
+    private FileChannel indexChannel;
+    private long indexRecords;
+    private StateLog undoLog;
+
+    // Slots are stored incremented by one since the map returns 0 for missing keys
+    private final TObjectIntHashMap<String> slotsByIri = new TObjectIntHashMap<>();
+    private String[] irisBySlot = new String[0];
+    private final TIntArrayList freeSlots = new TIntArrayList();
+    private int usedSlots;
+
+    // The last commit, kept so it can be undone if the transaction is aborted after it was persisted
+    private Map<String, Long> lastPreviousValues;
+    private long lastPreviousFingerprint;
+    private long undoSizeBeforeLastCommit;
+
+    /**
+     * @param directory the directory of the files
+     */
+    SlotFile(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Checks if there is a complete generation of the state in the directory.
+     */
+    static boolean exists(Path directory) throws IOException {
+        return lastGeneration(directory) != 0;
+    }
+
+    /**
+     * Deletes all generations of the state in the directory.
+     */
+    static void delete(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            deleteGenerations(directory, 0);
+        }
+    }
+
+    boolean isOpen() {
+        return slotChannel != null;
+    }
+
+    /**
+     * Reads the state, undoing a commit that was interrupted by a crash.
+     *
+     * @param sequences              receives the values of the sequences in the newest state
+     * @param fingerprintedSequences receives the history of the states
+     * @return true if an interrupted commit was undone, in which case the state must be rewritten with
+     * {@link #write(SequenceStore, LongFunction, FingerprintedSequences)}
+     */
+    boolean read(Map<String, Long> sequences, FingerprintedSequences fingerprintedSequences) throws IOException {
+        close();
+        generation = lastGeneration(directory);
+        deleteGenerations(directory, generation);
+        open();
+        ByteBuffer slots = readSlots();
+        if (slots.getInt(0) != MAGIC) {
+            throw new IOException("Not a sequences slot file: " + path("bin"));
+        }
+        if (slots.getInt(4) != VERSION) {
+            throw new IOException("Unsupported sequences slot file version: " + slots.getInt(4));
+        }
+        readIndex();
+        for (int slot = 0; slot < usedSlots; slot++) {
+            if (irisBySlot[slot] != null) {
+                sequences.put(irisBySlot[slot], slots.getLong((int) offset(slot)));
+            }
+        }
+
+        List<long[]> fingerprints = new ArrayList<>();
+        List<Map<String, Long>> previousValues = new ArrayList<>();
+        undoLog.replay((previousFingerprint, fingerprint, values) -> {
+            fingerprints.add(new long[] {previousFingerprint, fingerprint});
+            previousValues.add(values);
+        });
+
+        long fingerprint = slots.getLong(FINGERPRINT_OFFSET);
+        int newest = fingerprints.size() - 1;
+        boolean undone = false;
+        for (; newest >= 0 && fingerprints.get(newest)[1] != fingerprint; newest--) {
+            applyTo(sequences, previousValues.get(newest));
+            undone = true;
+        }
+
+        // Follow the records back from the newest state, skipping those of reverted states
+        List<FingerprintedSequences.Revision> revisions = new ArrayList<>();
+        long current = fingerprint;
+        for (int i = newest; i >= 0; i--) {
+            if (fingerprints.get(i)[1] == current) {
+                current = fingerprints.get(i)[0];
+                revisions.add(new FingerprintedSequences.Revision(current, previousValues.get(i)));
+            }
+        }
+        fingerprintedSequences.load(fingerprint, revisions);
+        return undone;
+    }
+
+    /**
+     * Writes the whole state as a new generation and deletes the previous one.
+     *
+     * @return the number of bytes written
+     */
+    long write(SequenceStore sequences, LongFunction<String> iriResolver,
+               FingerprintedSequences fingerprintedSequences) throws IOException {
+        close();
+        Files.createDirectories(directory);
+        generation = Math.max(generation, lastGeneration(directory)) + 1;
+
+        int count = sequences.size();
+        capacity = (int) Math.min(Math.max(MIN_CAPACITY, count + (count >> 1)), MAX_CAPACITY);
+        irisBySlot = new String[capacity];
+        slotsByIri.clear();
+        freeSlots.clear();
+        usedSlots = 0;
+
+        Path indexPath = path("idx");
+        Path slotPath = path("bin");
+        Path tempPath = slotPath.resolveSibling(slotPath.getFileName() + ".tmp");
+        try (FileChannel indexOut = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel slotOut = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(indexOut), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(slotOut), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprintedSequences.getFingerprint());
+            out.write(new byte[HEADER_SIZE - 16]);
+            IOException[] error = new IOException[1];
+            sequences.forEachSlot(sequenceSlot -> {
+                if (error[0] == null) {
+                    try {
+                        String iri = sequences.iri(sequenceSlot, iriResolver);
+                        int slot = usedSlots++;
+                        assign(slot, iri);
+                        writeIndexRecord(index, slot, iri);
+                        out.writeLong(sequences.currentValue(sequenceSlot));
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            index.flush();
+            indexOut.force(false);
+            indexRecords = usedSlots;
+            out.flush();
+            // Extends the file to its capacity, the free slots read as zeros
+            slotOut.write(ByteBuffer.allocate(1), (long) HEADER_SIZE + (long) capacity * SLOT_SIZE - 1);
+            slotOut.force(false);
+        }
+
+        StateLog undo = new StateLog(path("undo"));
+        undo.truncate();
+        writeUndoRecords(undo, fingerprintedSequences, 0);
+
+        Files.move(tempPath, slotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteGenerations(directory, generation);
+        open();
+        lastPreviousValues = null;
+        return size();
+    }
+
+    /**
+     * Persists the changes of a transaction in place.
+     *
+     * @param previousFingerprint    the fingerprint of the state the changes apply to
+     * @param fingerprint            the fingerprint of the state after the changes
+     * @param changes                the new values of the changed sequences, null for dropped sequences
+     * @param previousValues         the values of the changed sequences in the previous state, null for sequences that
+     *                               did not exist
+     * @param fingerprintedSequences the history of the states, which already includes the transaction
+     * @return the number of bytes written
+     */
+    long commit(long previousFingerprint, long fingerprint, Map<String, Long> changes,
+                Map<String, Long> previousValues, FingerprintedSequences fingerprintedSequences) throws IOException {
+        if (undoLog.size() > MIN_UNDO_SIZE_TO_COMPACT) {
+            compactUndoLog(fingerprintedSequences);
+        }
+        undoSizeBeforeLastCommit = undoLog.size();
+        long bytes = undoLog.append(previousFingerprint, fingerprint, previousValues);
+        bytes += apply(changes);
+        setFingerprint(fingerprint);
+        lastPreviousValues = previousValues;
+        lastPreviousFingerprint = previousFingerprint;
+
+        if (indexRecords > 2L * slotsByIri.size() + MIN_CAPACITY) {
+            compactIndex();
+        }
+        return bytes;
+    }
+
+    /**
+     * Forgets the last commit once its transaction completed, so it can no longer be undone.
+     */
+    void commitCompleted() {
+        lastPreviousValues = null;
+    }
+
+    /**
+     * Undoes the last commit, after the transaction was aborted.
+     */
+    void undoLastCommit() throws IOException {
+        if (lastPreviousValues != null) {
+            apply(lastPreviousValues);
+            setFingerprint(lastPreviousFingerprint);
+            undoLog.truncate(undoSizeBeforeLastCommit);
+            lastPreviousValues = null;
+        }
+    }
+
+    /**
+     * Returns the size of the files in bytes.
+     */
+    long size() throws IOException {
+        if (!isOpen()) {
+            return 0;
+        }
+        return slotChannel.size() + indexChannel.size() + undoLog.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (slotChannel != null) {
+            slotChannel.close();
+            slotChannel = null;
+        }
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        slotChannel = FileChannel.open(path("bin"), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = slotChannel.size();
+        if (size < HEADER_SIZE || size > HEADER_SIZE + (long) MAX_CAPACITY * SLOT_SIZE) {
+            throw new IOException("Corrupted sequences slot file: " + path("bin"));
+        }
+        capacity = (int) ((size - HEADER_SIZE) / SLOT_SIZE);
+        if (irisBySlot.length < capacity) {
+            irisBySlot = Arrays.copyOf(irisBySlot, capacity);
+        }
+        indexChannel = FileChannel.open(path("idx"), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        undoLog = new StateLog(path("undo"));
+    }
+
+    /**
+     * Reads the whole slot file, header included, into a heap buffer.
+     */
+    private ByteBuffer readSlots() throws IOException {
+        ByteBuffer slots = ByteBuffer.allocate((int) slotChannel.size());
+        while (slots.hasRemaining()) {
+            if (slotChannel.read(slots, slots.position()) < 0) {
+                throw new EOFException("Corrupted sequences slot file: " + path("bin"));
+            }
+        }
+        slots.flip();
+        return slots;
+    }
+
+    /**
+     * Writes the values in place, assigning slots to new sequences and freeing the slots of dropped ones.
+     *
+     * @return the number of bytes written
+     */
+    private long apply(Map<String, Long> values) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        int[] slotsToWrite = new int[values.size()];
+        int written = 0;
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            String iri = entry.getKey();
+            int slot = slotsByIri.get(iri) - 1;
+            if (entry.getValue() == null) {
+                if (slot >= 0) {
+                    slotsByIri.remove(iri);
+                    irisBySlot[slot] = null;
+                    freeSlots.add(slot);
+                    writeIndexRecord(records, slot, null);
+                }
+            } else {
+                if (slot < 0) {
+                    slot = allocate();
+                    assign(slot, iri);
+                    writeIndexRecord(records, slot, iri);
+                }
+                slotsToWrite[written++] = slot;
+            }
+        }
+
+        if (recordBytes.size() != 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(recordBytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                indexChannel.write(buffer);
+            }
+            indexChannel.force(false);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+        for (int i = 0; i < written; i++) {
+            int slot = slotsToWrite[i];
+            buffer.clear();
+            buffer.putLong(values.get(irisBySlot[slot])).flip();
+            writeFully(buffer, offset(slot));
+        }
+        slotChannel.force(false);
+        return recordBytes.size() + (long) written * SLOT_SIZE;
+    }
+
+    private void setFingerprint(long fingerprint) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(fingerprint).flip();
+        writeFully(buffer, FINGERPRINT_OFFSET);
+        slotChannel.force(false);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += slotChannel.write(buffer, position);
+        }
+    }
+
+    private int allocate() throws IOException {
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.remove(freeSlots.size() - 1);
+        }
+        if (usedSlots == capacity) {
+            if (capacity == MAX_CAPACITY) {
+                throw new IOException("Too many sequences for the slot file: " + capacity);
+            }
+            capacity = (int) Math.min((long) capacity * 2, MAX_CAPACITY);
+            // The new slots read as zeros. The file is extended before the index records that refer to them are
+            // appended, so the index never refers to a slot past the end of the file.
+            writeFully(ByteBuffer.allocate(1), offset(capacity) - 1);
+            slotChannel.force(true);
+            irisBySlot = Arrays.copyOf(irisBySlot, capacity);
+        }
+        return usedSlots++;
+    }
+
+    private void assign(int slot, String iri) {
+        irisBySlot[slot] = iri;
+        slotsByIri.put(iri, slot + 1);
+    }
+
+    private void readIndex() throws IOException {
+        slotsByIri.clear();
+        freeSlots.clear();
+        Arrays.fill(irisBySlot, null);
+        usedSlots = 0;
+        indexRecords = 0;
+
+        Path indexPath = path("idx");
+        long length = indexChannel.size();
+        long validLength = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(indexPath), 64 * 1024)) {
+            DataInputStream data = new DataInputStream(in);
+            while (true) {
+                int slot;
+                String iri;
+                try {
+                    slot = data.readInt();
+                    int iriLength = data.readInt();
+                    byte[] bytes = null;
+                    if (iriLength != FREED) {
+                        if (iriLength < 0 || iriLength > length - validLength) {
+                            break;
+                        }
+                        bytes = new byte[iriLength];
+                        data.readFully(bytes);
+                    }
+                    CRC32 crc = new CRC32();
+                    updateCrc(crc, slot, iriLength, bytes);
+                    if (data.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    if (slot < 0 || slot >= capacity) {
+                        throw new IOException("Corrupted sequences slot index: " + indexPath);
+                    }
+                    iri = bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+                    validLength += 12 + (bytes == null ? 0 : bytes.length);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (irisBySlot[slot] != null) {
+                    slotsByIri.remove(irisBySlot[slot]);
+                    irisBySlot[slot] = null;
+                }
+                if (iri != null) {
+                    assign(slot, iri);
+                }
+                usedSlots = Math.max(usedSlots, slot + 1);
+                indexRecords++;
+            }
+        }
+        // Discard a record torn by a crash
+        indexChannel.truncate(validLength);
+
+        for (int slot = usedSlots - 1; slot >= 0; slot--) {
+            if (irisBySlot[slot] == null) {
+                freeSlots.add(slot);
+            }
+        }
+    }
+
+    private void compactIndex() throws IOException {
+        Path indexPath = path("idx");
+        Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), 64 * 1024));
+            for (int slot = 0; slot < usedSlots; slot++) {
+                if (irisBySlot[slot] != null) {
+                    writeIndexRecord(out, slot, irisBySlot[slot]);
+                }
+            }
+            out.flush();
+            channel.force(false);
+        }
+        indexChannel.close();
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexRecords = slotsByIri.size();
+    }
+
+    /**
+     * Rewrites the undo log with the records of the kept history only, except for the newest record, which is
+     * appended by the commit that follows.
+     */
+    private void compactUndoLog(FingerprintedSequences fingerprintedSequences) throws IOException {
+        Path undoPath = path("undo");
+        Path tempPath = undoPath.resolveSibling(undoPath.getFileName() + ".tmp");
+        StateLog compacted = new StateLog(tempPath);
+        compacted.truncate();
+        writeUndoRecords(compacted, fingerprintedSequences, 1);
+        Files.move(tempPath, undoPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Appends the revisions of the history to an undo log, oldest first.
+     *
+     * @param skip the number of the newest revisions to leave out
+     */
+    private static void writeUndoRecords(StateLog undo, FingerprintedSequences fingerprintedSequences, int skip)
+            throws IOException {
+        List<FingerprintedSequences.Revision> revisions = new ArrayList<>(fingerprintedSequences.getRevisions());
+        for (int i = revisions.size() - 1; i >= skip; i--) {
+            long fingerprint = i == 0 ? fingerprintedSequences.getFingerprint() : revisions.get(i - 1).fingerprint;
+            undo.append(revisions.get(i).fingerprint, fingerprint, revisions.get(i).previousValues);
+        }
+    }
+
+    private static void applyTo(Map<String, Long> sequences, Map<String, Long> values) {
+        values.forEach((iri, value) -> {
+            if (value == null) {
+                sequences.remove(iri);
+            } else {
+                sequences.put(iri, value);
+            }
+        });
+    }
+
+    private static void writeIndexRecord(DataOutputStream out, int slot, String iri) throws IOException {
+        byte[] bytes = iri == null ? null : iri.getBytes(StandardCharsets.UTF_8);
+        int length = bytes == null ? FREED : bytes.length;
+        out.writeInt(slot);
+        out.writeInt(length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+        CRC32 crc = new CRC32();
+        updateCrc(crc, slot, length, bytes);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void updateCrc(CRC32 crc, int slot, int length, byte[] bytes) {
+        crc.update(ByteBuffer.allocate(8).putInt(slot).putInt(length).array());
+        if (bytes != null) {
+            crc.update(bytes);
+        }
+    }
+
+    private static long offset(int slot) {
+        return HEADER_SIZE + (long) slot * SLOT_SIZE;
+    }
+
+    private Path path(String extension) {
+        return directory.resolve(PREFIX + generation + "." + extension);
+    }
+
+    /**
+     * Returns the newest complete generation, 0 if there is none.
+     */
+    private static int lastGeneration(Path directory) throws IOException {
+        int generation = 0;
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*.bin")) {
+                for (Path file : files) {
+                    generation = Math.max(generation, generation(file));
+                }
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Deletes the files of all generations but the given one, including incomplete ones.
+     */
+    private static void deleteGenerations(Path directory, int keep) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path file : files) {
+                if (generation(file) != keep || file.getFileName().toString().endsWith(".tmp")) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static int generation(Path file) {
+        String name = file.getFileName().toString();
+        int end = name.indexOf('.');
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
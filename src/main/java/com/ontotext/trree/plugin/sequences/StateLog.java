@@ -0,0 +1,169 @@
+package com.ontotext.trree.plugin.sequences;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes committed to the sequences since the last snapshot of the state.
+ *
+ * Each record holds the fingerprint of the state the changes apply to, the fingerprint of the resulting state and
+ * the new value of every changed sequence (a missing value means the sequence was dropped). Records are protected
+ * by a CRC so that a record torn by a crash is detected and discarded when the log is replayed.
+ */
+class StateLog {
+    private static final byte DROPPED = 0;
+    private static final byte PRESENT = 1;
+
+    /**
+     * Receives the records of the log when it is replayed.
+     */
+    interface Replayer {
+        void replay(long previousFingerprint, long fingerprint, Map<String, Long> changes);
+    }
+
+    private final Path path;
+
+    StateLog(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the size of the log in bytes.
+     */
+    long size() throws IOException {
+        return Files.exists(path) ? Files.size(path) : 0;
+    }
+
+    /**
+     * Appends a single record to the log and forces it to the storage device, so that the record survives a crash
+     * once the commit it belongs to has returned.
+     *
+     * @param previousFingerprint the fingerprint of the state the changes apply to
+     * @param fingerprint         the fingerprint of the state after the changes
+     * @param changes             the new values of the changed sequences, null values denote dropped sequences
+     * @return the size of the record in bytes
+     */
+    int append(long previousFingerprint, long fingerprint, Map<String, Long> changes) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(previousFingerprint);
+        payload.writeLong(fingerprint);
+        payload.writeInt(changes.size());
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            byte[] iri = change.getKey().getBytes(StandardCharsets.UTF_8);
+            payload.writeInt(iri.length);
+            payload.write(iri);
+            if (change.getValue() == null) {
+                payload.writeByte(DROPPED);
+            } else {
+                payload.writeByte(PRESENT);
+                payload.writeLong(change.getValue());
+            }
+        }
+        payload.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes.toByteArray());
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(payloadBytes.size() + 8);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(payloadBytes.size());
+        payloadBytes.writeTo(record);
+        record.writeInt((int) crc.getValue());
+        record.flush();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(recordBytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        return recordBytes.size();
+    }
+
+    /**
+     * Replays all complete records in the order they were appended. A torn or corrupted record at the end of the log
+     * is discarded together with anything that follows it.
+     */
+    void replay(Replayer replayer) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        long fileLength = Files.size(path);
+        long validLength = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            DataInputStream data = new DataInputStream(in);
+            while (true) {
+                byte[] payloadBytes;
+                try {
+                    int length = data.readInt();
+                    if (length < 0 || length > fileLength - validLength) {
+                        break;
+                    }
+                    payloadBytes = new byte[length];
+                    data.readFully(payloadBytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(payloadBytes);
+                    if (data.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(payloadBytes));
+                long previousFingerprint = payload.readLong();
+                long fingerprint = payload.readLong();
+                int count = payload.readInt();
+                Map<String, Long> changes = new HashMap<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    byte[] iri = new byte[payload.readInt()];
+                    payload.readFully(iri);
+                    Long value = payload.readByte() == PRESENT ? payload.readLong() : null;
+                    changes.put(new String(iri, StandardCharsets.UTF_8), value);
+                }
+                replayer.replay(previousFingerprint, fingerprint, changes);
+                validLength += payloadBytes.length + 8;
+            }
+        }
+
+        if (validLength < fileLength) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    /**
+     * Discards all records, typically after their changes were written to a new snapshot.
+     */
+    void truncate() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Discards the records appended after the log had the given size.
+     */
+    void truncate(long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            channel.force(false);
+        }
+    }
+}
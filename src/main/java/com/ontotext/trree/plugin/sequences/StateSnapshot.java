@@ -0,0 +1,548 @@
+package com.ontotext.trree.plugin.sequences;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the binary snapshot of the plugin state. The sequences are partitioned into shards by the hash of
+ * their IRI and each shard is kept in a file of its own, so a snapshot can rewrite only the shards that changed since
+ * the previous one and the shards can be read in parallel. The main file (state.bin) holds the fingerprint of the
+ * newest state, the shards with the generation and the fingerprint of the snapshot that wrote each of them and the
+ * revisions of {@link FingerprintedSequences} that lead back to the older states. Every shard also holds the fingerprint
+ * it was written for, which must match the main file, so a shard of another state is detected even if it is intact.
+ *
+ * Every file starts with a magic number and a format version, followed by sections, each terminated by the CRC32 of
+ * its bytes:
+ * <pre>
+ * state.bin:       fingerprint (8 bytes), shard count, shard count x (generation, fingerprint (8 bytes))
+ *                  revisions: count, count x (fingerprint (8 bytes), count, count x (IRI, present (1 byte), [value]))
+ * state-N-i-G.bin: shard index, shard count, fingerprint (8 bytes), count, count x (IRI, value)
+ * </pre>
+ * Counts, generations and IRI lengths are unsigned varints, values are zigzag-encoded varints and IRIs are UTF-8 bytes
+ * prefixed by their length. A snapshot writes its shards to new files named after its generation, which are not
+ * referenced by the previous main file, and then replaces the main file with a temporary file in a single atomic move.
+ * A crash before the move thus leaves the previous snapshot intact, shards included, and the files that are not
+ * referenced by the main file are deleted by the next snapshot.
+ */
+final class StateSnapshot {
+    static final int DEFAULT_SHARD_COUNT = 16;
+
+    private static final int MAGIC = 0x53455153; // "SEQS"
+    private static final int VERSION = 3;
+
+    private static final byte DROPPED = 0;
+    private static final byte PRESENT = 1;
+
+    private StateSnapshot() {
+    }
+
+    /**
+     * The generation and the fingerprint of the snapshot that wrote each shard.
+     */
+    private static final class ShardTable {
+        final long[] generations;
+        final long[] fingerprints;
+
+        ShardTable(int shardCount) {
+            generations = new long[shardCount];
+            fingerprints = new long[shardCount];
+        }
+
+        int shardCount() {
+            return generations.length;
+        }
+    }
+
+    /**
+     * Writes a snapshot of all sequences in {@link #DEFAULT_SHARD_COUNT} shards.
+     *
+     * @see #write(Path, SequenceStore, LongFunction, FingerprintedSequences, int, BitSet)
+     */
+    static long write(Path path, SequenceStore sequences, LongFunction<String> iriResolver,
+                      FingerprintedSequences fingerprintedSequences) throws IOException {
+        return write(path, sequences, iriResolver, fingerprintedSequences, DEFAULT_SHARD_COUNT, null);
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param path                   the main file of the snapshot, the shards are written next to it
+     * @param sequences              the sequences in the newest state
+     * @param iriResolver            resolves the IRI of a sequence from its entity ID
+     * @param fingerprintedSequences the history of the states
+     * @param shardCount             the number of shards
+     * @param shards                 the shards to write, which must include every shard that changed since the
+     *                               previous snapshot with the same number of shards, or null to write all shards
+     * @return the number of bytes written
+     */
+    static long write(Path path, SequenceStore sequences, LongFunction<String> iriResolver,
+                      FingerprintedSequences fingerprintedSequences, int shardCount, BitSet shards)
+            throws IOException {
+        ShardTable shardTable = previousShardTable(path, shardCount);
+        long generation = 1;
+        long fingerprint = fingerprintedSequences.getFingerprint();
+        BitSet written = shards;
+        if (shardTable == null || written == null) {
+            shardTable = new ShardTable(shardCount);
+            written = new BitSet(shardCount);
+            written.set(0, shardCount);
+        }
+        for (long shardGeneration : shardTable.generations) {
+            generation = Math.max(generation, shardGeneration + 1);
+        }
+        for (int shard = written.nextSetBit(0); shard >= 0; shard = written.nextSetBit(shard + 1)) {
+            shardTable.generations[shard] = generation;
+            shardTable.fingerprints[shard] = fingerprint;
+        }
+
+        long bytes = writeShards(path, sequences, iriResolver, shardCount, written, generation, fingerprint);
+
+        Path tempPath = tempPath(path);
+        try (FileChannel channel = open(tempPath)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = newOutputStream(channel, crc);
+            out.writeLong(fingerprint);
+            writeVarint(out, shardCount);
+            for (int shard = 0; shard < shardCount; shard++) {
+                writeVarint(out, shardTable.generations[shard]);
+                out.writeLong(shardTable.fingerprints[shard]);
+            }
+            writeCrc(out, crc);
+
+            writeVarint(out, fingerprintedSequences.getRevisions().size());
+            for (FingerprintedSequences.Revision revision : fingerprintedSequences.getRevisions()) {
+                out.writeLong(revision.fingerprint);
+                writeVarint(out, revision.previousValues.size());
+                for (Map.Entry<String, Long> entry : revision.previousValues.entrySet()) {
+                    writeString(out, entry.getKey());
+                    if (entry.getValue() == null) {
+                        out.writeByte(DROPPED);
+                    } else {
+                        out.writeByte(PRESENT);
+                        writeVarint(out, zigzag(entry.getValue()));
+                    }
+                }
+            }
+            writeCrc(out, crc);
+
+            out.flush();
+            channel.force(true);
+            bytes += channel.size();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        deleteOtherShards(path, shardPaths(path, shardTable));
+        return bytes;
+    }
+
+    /**
+     * Returns the shards of the snapshot in the main file, or null if there is no snapshot with the given number of
+     * shards, in which case all shards must be written.
+     */
+    private static ShardTable previousShardTable(Path path, int shardCount) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            ShardTable shardTable = readShardTable(path);
+            return shardTable.shardCount() == shardCount ? shardTable : null;
+        } catch (IOException e) {
+            // Replaced by a complete snapshot
+            return null;
+        }
+    }
+
+    private static long writeShards(Path path, SequenceStore sequences, LongFunction<String> iriResolver,
+                                    int shardCount, BitSet shards, long generation, long fingerprint)
+            throws IOException {
+        int[] counts = new int[shardCount];
+        sequences.forEachSlot(slot -> counts[shard(sequences.iriHash(slot), shardCount)]++);
+
+        FileChannel[] channels = new FileChannel[shardCount];
+        DataOutputStream[] outs = new DataOutputStream[shardCount];
+        CRC32[] crcs = new CRC32[shardCount];
+        long bytes = 0;
+        try {
+            for (int shard = shards.nextSetBit(0); shard >= 0; shard = shards.nextSetBit(shard + 1)) {
+                channels[shard] = open(shardPath(path, shardCount, shard, generation));
+                crcs[shard] = new CRC32();
+                outs[shard] = newOutputStream(channels[shard], crcs[shard]);
+                writeVarint(outs[shard], shard);
+                writeVarint(outs[shard], shardCount);
+                outs[shard].writeLong(fingerprint);
+                writeVarint(outs[shard], counts[shard]);
+            }
+
+            try {
+                sequences.forEachSlot(slot -> {
+                    DataOutputStream out = outs[shard(sequences.iriHash(slot), shardCount)];
+                    if (out != null) {
+                        try {
+                            writeString(out, sequences.iri(slot, iriResolver));
+                            writeVarint(out, zigzag(sequences.currentValue(slot)));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            for (int shard = shards.nextSetBit(0); shard >= 0; shard = shards.nextSetBit(shard + 1)) {
+                writeCrc(outs[shard], crcs[shard]);
+                channels[shard].force(true);
+                bytes += channels[shard].size();
+            }
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a snapshot. The shards are read in parallel.
+     *
+     * @param sequences              receives the values of the sequences in the newest state
+     * @param fingerprintedSequences receives the history of the states
+     * @return the number of shards of the snapshot
+     * @throws IOException if the snapshot is not in a supported format or is corrupted
+     */
+    static int read(Path path, Map<String, Long> sequences, FingerprintedSequences fingerprintedSequences)
+            throws IOException {
+        ByteBuffer buffer = readFile(path);
+        try {
+            readHeader(buffer, path);
+
+            int sectionStart = buffer.position();
+            long fingerprint = buffer.getLong();
+            ShardTable shardTable = readShardTable(buffer);
+            checkCrc(buffer, sectionStart, path);
+
+            sectionStart = buffer.position();
+            int revisionCount = readCount(buffer);
+            List<FingerprintedSequences.Revision> revisions = new ArrayList<>(revisionCount);
+            for (int i = 0; i < revisionCount; i++) {
+                long revisionFingerprint = buffer.getLong();
+                int valueCount = readCount(buffer);
+                Map<String, Long> previousValues = new HashMap<>(valueCount * 2);
+                for (int j = 0; j < valueCount; j++) {
+                    String iri = readString(buffer);
+                    previousValues.put(iri, buffer.get() == PRESENT ? unzigzag(readVarint(buffer)) : null);
+                }
+                revisions.add(new FingerprintedSequences.Revision(revisionFingerprint, previousValues));
+            }
+            checkCrc(buffer, sectionStart, path);
+
+            readShards(shardPaths(path, shardTable), shardTable.fingerprints, sequences);
+            fingerprintedSequences.load(fingerprint, revisions);
+            return shardTable.shardCount();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupted sequences state snapshot: " + path, e);
+        }
+    }
+
+    private static void readShards(List<Path> shardPaths, long[] fingerprints, Map<String, Long> sequences)
+            throws IOException {
+        int shardCount = shardPaths.size();
+        List<Map<String, Long>> shards = new ArrayList<>(Collections.nCopies(shardCount, null));
+        IOException[] errors = new IOException[shardCount];
+        // Decoding runs on the common fork-join pool, the store is filled by the caller afterwards. The errors are
+        // collected rather than thrown, so that no shard is still being read when the caller sees the first one.
+        IntStream.range(0, shardCount).parallel().forEach(shard -> {
+            try {
+                shards.set(shard, readShard(shardPaths.get(shard), shard, shardCount, fingerprints[shard]));
+            } catch (IOException e) {
+                errors[shard] = e;
+            }
+        });
+        for (IOException error : errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+        for (Map<String, Long> shard : shards) {
+            sequences.putAll(shard);
+        }
+    }
+
+    private static Map<String, Long> readShard(Path path, int shard, int shardCount, long fingerprint)
+            throws IOException {
+        ByteBuffer buffer = readFile(path);
+        try {
+            readHeader(buffer, path);
+            int sectionStart = buffer.position();
+            if (readVarint(buffer) != shard || readVarint(buffer) != shardCount) {
+                throw new IOException("Sequences state snapshot shard does not match its file name: " + path);
+            }
+            long shardFingerprint = buffer.getLong();
+            int count = readCount(buffer);
+            Map<String, Long> sequences = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                sequences.put(readString(buffer), unzigzag(readVarint(buffer)));
+            }
+            checkCrc(buffer, sectionStart, path);
+            if (shardFingerprint != fingerprint) {
+                throw new IOException("Sequences state snapshot shard was written for another state: " + path);
+            }
+            return sequences;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupted sequences state snapshot: " + path, e);
+        }
+    }
+
+    /**
+     * Returns the size of a snapshot, including its shards.
+     */
+    static long size(Path path) throws IOException {
+        long size = Files.size(path);
+        for (Path shardPath : shardPaths(path)) {
+            size += Files.size(shardPath);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the shard files of a snapshot, in shard order.
+     */
+    static List<Path> shardPaths(Path path) throws IOException {
+        return shardPaths(path, readShardTable(path));
+    }
+
+    private static List<Path> shardPaths(Path path, ShardTable shardTable) {
+        int shardCount = shardTable.shardCount();
+        List<Path> shardPaths = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardPaths.add(shardPath(path, shardCount, shard, shardTable.generations[shard]));
+        }
+        return shardPaths;
+    }
+
+    /**
+     * Reads the generations and fingerprints of the shards from the main file of a snapshot.
+     */
+    private static ShardTable readShardTable(Path path) throws IOException {
+        ByteBuffer buffer = readFile(path);
+        try {
+            readHeader(buffer, path);
+            int sectionStart = buffer.position();
+            buffer.getLong();
+            ShardTable shardTable = readShardTable(buffer);
+            checkCrc(buffer, sectionStart, path);
+            return shardTable;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupted sequences state snapshot: " + path, e);
+        }
+    }
+
+    private static ShardTable readShardTable(ByteBuffer buffer) {
+        int shardCount = readCount(buffer);
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Malformed shard count");
+        }
+        ShardTable shardTable = new ShardTable(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardTable.generations[shard] = readVarint(buffer);
+            shardTable.fingerprints[shard] = buffer.getLong();
+        }
+        return shardTable;
+    }
+
+    /**
+     * Returns the shard of a sequence.
+     *
+     * @param iriHash the hash of the sequence IRI, see {@link Fingerprints#ofIRI(String)}
+     */
+    static int shard(long iriHash, int shardCount) {
+        return (int) Long.remainderUnsigned(iriHash, shardCount);
+    }
+
+    private static Path shardPath(Path path, int shardCount, int shard, long generation) {
+        return path.resolveSibling(baseName(path) + "-" + shardCount + "-" + shard + "-" + generation + ".bin");
+    }
+
+    /**
+     * Deletes a snapshot with all its shards.
+     */
+    static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path.getParent())) {
+            deleteOtherShards(path, Collections.emptyList());
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Deletes the shard files other than the given ones, i.e. the shards replaced by newer generations, the shards of
+     * snapshots with a different number of shards and the shards left over by an interrupted snapshot.
+     */
+    private static void deleteOtherShards(Path path, List<Path> shardPaths) throws IOException {
+        Set<String> kept = shardPaths.stream().map(shardPath -> shardPath.getFileName().toString())
+                .collect(Collectors.toSet());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.getParent(), baseName(path) + "-*.bin")) {
+            for (Path file : files) {
+                if (!kept.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static String baseName(Path path) {
+        String name = path.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        return extension < 0 ? name : name.substring(0, extension);
+    }
+
+    private static Path tempPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Opens a stream that writes the header and then updates the CRC with everything written after it.
+     */
+    private static DataOutputStream newOutputStream(FileChannel channel, CRC32 crc) throws IOException {
+        // The CRC sees the bytes only when the buffer is flushed, see writeCrc()
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(Channels.newOutputStream(channel), crc), 32 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+        crc.reset();
+        return out;
+    }
+
+    /**
+     * Reads a whole file into a heap buffer. The files are small and read once, and unlike a mapping a heap buffer
+     * turns a file truncated or rewritten while it is read into a corrupted snapshot instead of a SIGBUS and does not
+     * keep the file locked on Windows until it is garbage collected.
+     */
+    private static ByteBuffer readFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Sequences state snapshot is too large: " + path);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Corrupted sequences state snapshot: " + path);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static void readHeader(ByteBuffer buffer, Path path) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a sequences state snapshot: " + path);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sequences state snapshot version: " + version);
+        }
+    }
+
+    private static void writeCrc(DataOutputStream out, CRC32 crc) throws IOException {
+        out.flush();
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        crc.reset();
+    }
+
+    private static void checkCrc(ByteBuffer buffer, int sectionStart, Path path) throws IOException {
+        ByteBuffer section = buffer.duplicate();
+        section.position(sectionStart).limit(buffer.position());
+        CRC32 crc = new CRC32();
+        crc.update(section);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            throw new IOException("Corrupted sequences state snapshot: " + path);
+        }
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a count or length, which cannot exceed the number of remaining bytes in a valid snapshot.
+     */
+    private static int readCount(ByteBuffer buffer) {
+        long count = readVarint(buffer);
+        if (count > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed count");
+        }
+        return (int) count;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,215 @@
+package com.ontotext.trree.plugin.sequences;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TLongObjectHashMap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+/**
+ * Tracks the sequences used by the current transaction. Only these sequences go through the prepare/commit/rollback
+ * lifecycle and are written to the state log, so the cost of finishing a transaction does not depend on the total
+ * number of sequences.
+ */
+class TouchedSequences {
+    private final SequenceStore sequences;
+
+    private final TIntHashSet slots = new TIntHashSet();
+
+    /**
+     * The sequences whose value was changed by nextValue, which must be replicated by a reset statement
+     */
+    private final TIntHashSet incremented = new TIntHashSet();
+
+    /**
+     * The sequences created on first use by the transaction, which must be replicated by a create statement
+     */
+    private final TIntHashSet autoCreated = new TIntHashSet();
+
+    /**
+     * The values before the transaction of the sequences created or dropped by it, null if a sequence did not exist
+     */
+    private final Map<String, Long> initialValues = new HashMap<>();
+
+    /**
+     * The options before the transaction of the sequences whose options were changed by it, keyed by entity ID
+     */
+    private final TLongObjectHashMap<SequenceOptions> initialOptions = new TLongObjectHashMap<>();
+
+    private boolean optionsChanged;
+
+    TouchedSequences(SequenceStore sequences) {
+        this.sequences = sequences;
+    }
+
+    /**
+     * Marks a sequence as used (created, reset or incremented) by the transaction.
+     */
+    void touch(int slot) {
+        slots.add(slot);
+    }
+
+    /**
+     * Marks a sequence as incremented by the transaction.
+     */
+    void increment(int slot) {
+        slots.add(slot);
+        incremented.add(slot);
+    }
+
+    /**
+     * Returns the sequences incremented by the transaction since the last call.
+     */
+    int[] takeIncremented() {
+        int[] result = incremented.toArray();
+        incremented.clear();
+        return result;
+    }
+
+    /**
+     * Returns the sequences created on first use by the transaction since the last call.
+     */
+    int[] takeAutoCreated() {
+        int[] result = autoCreated.toArray();
+        autoCreated.clear();
+        return result;
+    }
+
+    /**
+     * Marks a sequence as dropped by the transaction. Must be called before the sequence is removed from the store.
+     *
+     * @param slot the slot of the dropped sequence or {@link SequenceStore#NO_SLOT} if there was no such sequence
+     */
+    void drop(int slot, String iri) {
+        if (!initialValues.containsKey(iri)) {
+            initialValues.put(iri, slot == SequenceStore.NO_SLOT ? null : sequences.committedValue(slot));
+        }
+        if (slot != SequenceStore.NO_SLOT && sequences.options(slot) != null) {
+            optionsChanged = true;
+        }
+        slots.remove(slot);
+        incremented.remove(slot);
+        autoCreated.remove(slot);
+    }
+
+    /**
+     * Marks a sequence as created by the transaction, possibly replacing one dropped earlier in the same transaction.
+     */
+    void create(int slot, String iri) {
+        if (!initialValues.containsKey(iri)) {
+            initialValues.put(iri, null);
+        }
+        touch(slot);
+    }
+
+    /**
+     * Marks a sequence as created on first use by the transaction.
+     */
+    void autoCreate(int slot, String iri) {
+        create(slot, iri);
+        autoCreated.add(slot);
+    }
+
+    /**
+     * Changes the options of a sequence so that the change is undone if the transaction is rolled back.
+     */
+    void setOptions(int slot, SequenceOptions options) {
+        long id = sequences.id(slot);
+        if (!initialOptions.containsKey(id)) {
+            initialOptions.put(id, sequences.options(slot));
+        }
+        sequences.setOptions(slot, options);
+        optionsChanged = true;
+    }
+
+    /**
+     * Checks if the transaction created or dropped any sequence.
+     */
+    boolean createdOrDropped() {
+        return !initialValues.isEmpty();
+    }
+
+    /**
+     * Checks if the transaction changed the options of any sequence, including by dropping a sequence with options.
+     */
+    boolean optionsChanged() {
+        return optionsChanged;
+    }
+
+    void prepare() {
+        slots.forEach(slot -> {
+            sequences.prepare(slot);
+            return true;
+        });
+    }
+
+    void commit() {
+        sequences.commit(slots.toArray());
+        clear();
+    }
+
+    void rollback() {
+        // Removes the sequences created by the transaction and restores the dropped ones
+        sequences.rollback(slots.toArray());
+        initialOptions.forEachEntry((id, options) -> {
+            // Sequences created by the transaction are gone
+            int slot = sequences.slot(id);
+            if (slot != SequenceStore.NO_SLOT) {
+                sequences.setOptions(slot, options);
+            }
+            return true;
+        });
+        clear();
+    }
+
+    /**
+     * Collects the changes made by the transaction keyed by sequence IRI. Sequences that do not exist are mapped to
+     * null. Sequences that were used but end up with the value they had before the transaction are not changed, e.g.
+     * a sequence reset to its current value or created and dropped by the same transaction.
+     *
+     * @param iriResolver    resolves the IRI of a sequence from its entity ID
+     * @param changes        receives the values of the changed sequences after the transaction
+     * @param previousValues receives the values of the changed sequences before the transaction
+     */
+    void collectChanges(LongFunction<String> iriResolver, Map<String, Long> changes, Map<String, Long> previousValues) {
+        Set<String> existing = initialValues.isEmpty() ? Collections.emptySet() : new HashSet<>();
+        slots.forEach(slot -> {
+            String iri = sequences.iri(slot, iriResolver);
+            long value = sequences.currentValue(slot);
+            Long previousValue = initialValues.containsKey(iri) ? initialValues.get(iri)
+                    : Long.valueOf(sequences.committedValue(slot));
+            if (previousValue == null || previousValue != value) {
+                changes.put(iri, value);
+                previousValues.put(iri, previousValue);
+            }
+            if (!initialValues.isEmpty()) {
+                existing.add(iri);
+            }
+            return true;
+        });
+        initialValues.forEach((iri, value) -> {
+            // Dropped by the transaction and not created again
+            if (value != null && !existing.contains(iri)) {
+                changes.put(iri, null);
+                previousValues.put(iri, value);
+            }
+        });
+    }
+
+    boolean isEmpty() {
+        return slots.isEmpty() && initialValues.isEmpty() && !optionsChanged;
+    }
+
+    void clear() {
+        slots.clear();
+        incremented.clear();
+        autoCreated.clear();
+        initialValues.clear();
+        initialOptions.clear();
+        optionsChanged = false;
+    }
+}
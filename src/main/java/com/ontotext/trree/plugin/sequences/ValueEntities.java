@@ -0,0 +1,61 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.Request;
+import com.ontotext.trree.sdk.RequestContext;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+/**
+ * The request context of the plugin, which caches the request-scoped entities of the sequence values returned in the
+ * request. A value returned repeatedly, e.g. by seq:currentValue for every solution of a query or right after
+ * seq:nextValue, is then created and put into the entity pool once per request.
+ *
+ * The cache is direct-mapped and small, so its size does not depend on the number of values returned. Consecutive
+ * values, as returned by a sequence, never evict each other until the cache wraps around.
+ */
+class ValueEntities implements RequestContext {
+    private static final int SIZE = 64;
+
+    private Request request;
+
+    // Allocated on first use, as most requests do not use the sequences
+    private long[] values;
+    private long[] ids;
+
+    @Override
+    public Request getRequest() {
+        return request;
+    }
+
+    @Override
+    public void setRequest(Request request) {
+        this.request = request;
+    }
+
+    /**
+     * Returns the entity ID of the literal for a sequence value, using the cache of the request if there is one.
+     *
+     * @param requestContext the context of the request or null if it is not known
+     */
+    static long literal(RequestContext requestContext, Entities entities, long value) {
+        if (requestContext instanceof ValueEntities) {
+            return ((ValueEntities) requestContext).literal(entities, value);
+        }
+        return entities.put(SimpleValueFactory.getInstance().createLiteral(value), Entities.Scope.REQUEST);
+    }
+
+    long literal(Entities entities, long value) {
+        if (ids == null) {
+            values = new long[SIZE];
+            ids = new long[SIZE];
+        }
+        int index = (int) value & (SIZE - 1);
+        if (ids[index] != 0 && values[index] == value) {
+            return ids[index];
+        }
+        long id = entities.put(SimpleValueFactory.getInstance().createLiteral(value), Entities.Scope.REQUEST);
+        values[index] = value;
+        ids[index] = id;
+        return id;
+    }
+}
@@ -0,0 +1,62 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.StatementIterator;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+/**
+ * Returns a range of consecutive sequence values as the objects of the statements. The literal for each value, or the
+ * IRI minted from it, is created only when the iterator reaches it.
+ */
+class ValueRangeIterator extends StatementIterator {
+    private final Entities entities;
+    private final long first;
+    private final long count;
+    private long returned;
+
+    // Holds the IRI prefix followed by the last value, null if the values are returned as literals
+    private final StringBuilder iri;
+    private final int iriPrefixLength;
+
+    ValueRangeIterator(long subject, long predicate, long context, Entities entities, long first, long count) {
+        this(subject, predicate, context, entities, first, count, null);
+    }
+
+    /**
+     * @param iriPrefix the prefix of the IRIs to mint by appending each value to it, null to return literals
+     */
+    ValueRangeIterator(long subject, long predicate, long context, Entities entities, long first, long count,
+                       String iriPrefix) {
+        this.subject = subject;
+        this.predicate = predicate;
+        this.context = context;
+        this.entities = entities;
+        this.first = first;
+        this.count = count;
+        this.iri = iriPrefix == null ? null : new StringBuilder(iriPrefix.length() + 20).append(iriPrefix);
+        this.iriPrefixLength = iriPrefix == null ? 0 : iriPrefix.length();
+    }
+
+    @Override
+    public boolean next() {
+        if (returned == count) {
+            return false;
+        }
+        long value = first + returned++;
+        Value objectValue;
+        if (iri == null) {
+            objectValue = SimpleValueFactory.getInstance().createLiteral(value);
+        } else {
+            iri.setLength(iriPrefixLength);
+            objectValue = SimpleValueFactory.getInstance().createIRI(iri.append(value).toString());
+        }
+        object = entities.put(objectValue, Entities.Scope.REQUEST);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        returned = count;
+    }
+}
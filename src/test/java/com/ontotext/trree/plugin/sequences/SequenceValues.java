@@ -0,0 +1,24 @@
+package com.ontotext.trree.plugin.sequences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the maps of sequence IRIs to values used by the persistence tests.
+ */
+final class SequenceValues {
+    private SequenceValues() {
+    }
+
+    /**
+     * Returns a mutable map of the given IRI and value pairs, where a null value stands for a sequence that does not
+     * exist.
+     */
+    static Map<String, Long> sequenceValues(Object... iriValuePairs) {
+        Map<String, Long> values = new HashMap<>();
+        for (int i = 0; i < iriValuePairs.length; i += 2) {
+            values.put((String) iriValuePairs[i], (Long) iriValuePairs[i + 1]);
+        }
+        return values;
+    }
+}
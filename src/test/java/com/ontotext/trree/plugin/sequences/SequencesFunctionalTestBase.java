@@ -0,0 +1,53 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.ontotext.graphdb.Config;
+import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.test.functional.base.SingleRepositoryFunctionalTest;
+import com.ontotext.test.utils.OwlimSeRepositoryDescription;
+import com.ontotext.trree.graphdb.GraphDBRepositoryFactory;
+import com.ontotext.trree.graphdb.GraphDBSailFactory;
+import org.eclipse.rdf4j.repository.config.RepositoryConfig;
+import org.eclipse.rdf4j.repository.sail.config.SailRepositoryConfig;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+
+/**
+ * Base of the tests that run against an embedded repository with the empty ruleset and a temporary GraphDB work
+ * directory. The benchmarks in src/jmh/java configure their repositories the same way.
+ */
+public abstract class SequencesFunctionalTestBase extends SingleRepositoryFunctionalTest {
+    @ClassRule
+    public static TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+    @BeforeClass
+    public static void setWorkDir() {
+        setWorkDir(String.valueOf(tmpFolder.getRoot()));
+    }
+
+    @AfterClass
+    public static void resetWorkDir() {
+        System.clearProperty("graphdb.home.work");
+        Config.reset();
+    }
+
+    @Override
+    protected RepositoryConfig createRepositoryConfiguration() {
+        return repositoryConfiguration();
+    }
+
+    static void setWorkDir(String directory) {
+        System.setProperty("graphdb.home.work", directory);
+        Config.reset();
+    }
+
+    static RepositoryConfig repositoryConfiguration() {
+        final OwlimSeRepositoryDescription repositoryDescription = new OwlimSeRepositoryDescription();
+        final OwlimSeRepositoryDescription.OWLIMSailConfigEx sailConfig = repositoryDescription.getOwlimSailConfig();
+        sailConfig.setRuleset("empty");
+        sailConfig.setType(GraphDBSailFactory.SAIL_TYPE);
+        SailRepositoryConfig sailrepositoryConfig = new SailRepositoryConfig(sailConfig);
+        sailrepositoryConfig.setType(GraphDBRepositoryFactory.REPOSITORY_TYPE);
+        return repositoryDescription.getRepositoryConfig();
+    }
+}
@@ -0,0 +1,43 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.ontotext.trree.sdk.PluginException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the parsing and matching of {@link AutoCreateRules}.
+ */
+public class TestAutoCreateRules {
+    @Test
+    public void testLongestPrefixWins() {
+        AutoCreateRules rules = AutoCreateRules.parse("urn:doc:=1, urn:doc:big:=1000,http://example.com/a=b/=-5");
+        assertEquals(Long.valueOf(1), rules.startValue("urn:doc:1"));
+        assertEquals(Long.valueOf(1000), rules.startValue("urn:doc:big:1"));
+        assertEquals(Long.valueOf(-5), rules.startValue("http://example.com/a=b/1"));
+        assertNull(rules.startValue("urn:other"));
+
+        rules = AutoCreateRules.parse("*=0,urn:doc:=1");
+        assertEquals(Long.valueOf(0), rules.startValue("urn:other"));
+        assertEquals(Long.valueOf(1), rules.startValue("urn:doc:1"));
+    }
+
+    @Test
+    public void testNone() {
+        assertTrue(AutoCreateRules.parse(null).isEmpty());
+        assertTrue(AutoCreateRules.parse(" ").isEmpty());
+        assertNull(AutoCreateRules.parse("").startValue("urn:doc:1"));
+    }
+
+    @Test(expected = PluginException.class)
+    public void testMissingStartValue() {
+        AutoCreateRules.parse("urn:doc:");
+    }
+
+    @Test(expected = PluginException.class)
+    public void testInvalidStartValue() {
+        AutoCreateRules.parse("urn:doc:=one");
+    }
+}
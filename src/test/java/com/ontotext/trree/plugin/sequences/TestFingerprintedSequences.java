@@ -1,19 +1,18 @@
 package com.ontotext.trree.plugin.sequences;
 
-import org.apache.commons.lang3.RandomUtils;
 import org.junit.Test;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.TreeMap;
-import java.util.UUID;
 
+import static com.ontotext.trree.plugin.sequences.SequenceValues.sequenceValues;
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
- * Verifies the contract of {@link FingerprintedSequences} that goes beyond a regular {@link java.util.LinkedHashMap}.
+ * Verifies the contract of {@link FingerprintedSequences}.
  */
 public class TestFingerprintedSequences {
     @Test
@@ -21,22 +20,59 @@ public class TestFingerprintedSequences {
         FingerprintedSequences sequences = new FingerprintedSequences();
 
         // Add 10 fingerprint-sequences
-        for (long i = 10; i > 0; i--) {
-            assertNull(sequences.put(i, newSequenceMap()));
+        for (long i = 1; i <= 10; i++) {
+            sequences.add(i, Collections.singletonMap("urn:seq", i - 1));
         }
 
         assertEquals("Only the last 5 fingerprints should be kept",
-                Arrays.asList(5L, 4L, 3L, 2L, 1L), new ArrayList<>(sequences.keySet()));
+                Arrays.asList(10L, 9L, 8L, 7L, 6L), sequences.getFingerprints());
 
-        assertNotNull(sequences.put(3L, newSequenceMap()));
+        sequences.add(8L, Collections.singletonMap("urn:seq", 10L));
 
-        assertEquals("Re-adding an existing fingerprint should move it forward",
-                Arrays.asList(5L, 4L, 2L, 1L, 3L), new ArrayList<>(sequences.keySet()));
+        assertEquals("Re-adding an existing fingerprint should make it the newest",
+                Arrays.asList(8L, 10L, 9L, 8L, 7L), sequences.getFingerprints());
+
+        TreeMap<String, Long> state = new TreeMap<>(Collections.singletonMap("urn:seq", 11L));
+        assertTrue(sequences.revert(8L, state));
+        assertEquals("The newest state with the fingerprint must be kept", 11L, (long) state.get("urn:seq"));
     }
 
-    private TreeMap<String, Sequence> newSequenceMap() {
-        TreeMap<String, Sequence> treeMap = new TreeMap<>();
-        treeMap.put(UUID.randomUUID().toString(), new Sequence(RandomUtils.nextLong(0, 1_000_000)));
-        return treeMap;
+    @Test
+    public void testRevert() {
+        FingerprintedSequences sequences = new FingerprintedSequences();
+        TreeMap<String, Long> state = new TreeMap<>();
+
+        // 0 -> 1: create a and b
+        state.put("urn:a", 1L);
+        state.put("urn:b", 1L);
+        sequences.add(1, sequenceValues("urn:a", null, "urn:b", null));
+        // 1 -> 2: increment a, drop b
+        state.put("urn:a", 5L);
+        state.remove("urn:b");
+        sequences.add(2, sequenceValues("urn:a", 1L, "urn:b", 1L));
+        // 2 -> 3: create c
+        state.put("urn:c", 7L);
+        sequences.add(3, sequenceValues("urn:c", null));
+
+        assertFalse(sequences.revert(42, state));
+        assertEquals(3, sequences.getFingerprint());
+
+        assertTrue(sequences.revert(1, state));
+        assertEquals(sequenceValues("urn:a", 1L, "urn:b", 1L), state);
+        assertEquals("Reverted states must be forgotten", Arrays.asList(1L, 0L), sequences.getFingerprints());
+
+        assertTrue(sequences.revert(0, state));
+        assertTrue(state.isEmpty());
+    }
+
+    @Test
+    public void testConfigurableDepth() {
+        FingerprintedSequences sequences = new FingerprintedSequences(100);
+        for (long i = 1; i <= 200; i++) {
+            sequences.add(i, Collections.singletonMap("urn:seq", i - 1));
+        }
+        assertEquals(100, sequences.getFingerprints().size());
+        assertTrue(sequences.contains(101));
+        assertFalse(sequences.contains(100));
     }
 }
@@ -0,0 +1,52 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies that {@link JsonStateSnapshot} converts the JSON snapshots of earlier versions into the newest state and
+ * the revisions that lead back to the older ones.
+ */
+public class TestJsonStateSnapshot {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testRead() throws IOException {
+        Path path = tmpFolder.getRoot().toPath().resolve("state.js");
+        Files.write(path, ("{\"11\":{\"urn:a\":{\"value\":1}},"
+                + "\"12\":{\"urn:a\":{\"value\":3},\"urn:b\":{\"value\":7}},"
+                + "\"13\":{\"urn:b\":{\"value\":8}}}").getBytes(StandardCharsets.UTF_8));
+
+        TreeMap<String, Long> storedSequences = new TreeMap<>();
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        JsonStateSnapshot.read(objectMapper, path, storedSequences, fingerprintedSequences);
+
+        assertEquals(Collections.singletonMap("urn:b", 8L), storedSequences);
+        assertEquals(Arrays.asList(13L, 12L, 11L), fingerprintedSequences.getFingerprints());
+
+        assertTrue(fingerprintedSequences.revert(12, storedSequences));
+        TreeMap<String, Long> expected = new TreeMap<>();
+        expected.put("urn:a", 3L);
+        expected.put("urn:b", 7L);
+        assertEquals(expected, storedSequences);
+
+        assertTrue(fingerprintedSequences.revert(11, storedSequences));
+        assertEquals(Collections.singletonMap("urn:a", 1L), storedSequences);
+    }
+}
@@ -0,0 +1,218 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ontotext.trree.sdk.PluginException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that {@link NonTransactionalSequences} hand out unique values to concurrent threads, persist the high-water
+ * marks before handing out values past them, compose time-based IDs that survive the clock moving back and make
+ * creating and dropping sequences transactional.
+ */
+public class TestNonTransactionalSequences {
+    private static final int BLOCK_SIZE = 10;
+    private static final int NODE_ID = 5;
+    // 2021-01-01T00:00:00Z
+    private static final long NOW = 1609459200000L;
+
+    private final AtomicLong clock = new AtomicLong(NOW);
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentValuesAreUnique() throws Exception {
+        NonTransactionalSequences sequences = create(1, "urn:a", 0);
+        NonTransactionalSequences.Sequence sequence = sequences.get(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    List<Long> values = new ArrayList<>();
+                    long lastValue = 0;
+                    for (int j = 0; j < 10000; j++) {
+                        if (j % 100 == 0) {
+                            long first = sequence.nextValues(15);
+                            for (int k = 0; k < 15; k++) {
+                                values.add(first + k);
+                            }
+                        } else {
+                            // Ranges that do not fit in the block of the thread are taken after it
+                            long value = sequence.nextValue();
+                            assertTrue("The values of a thread must increase", value > lastValue);
+                            values.add(value);
+                            lastValue = value;
+                        }
+                    }
+                    return values;
+                }));
+            }
+            Set<Long> values = new HashSet<>();
+            for (Future<List<Long>> future : futures) {
+                for (long value : future.get()) {
+                    assertTrue("Duplicate value " + value, values.add(value));
+                    assertTrue(value <= sequence.highWaterMark());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRestartContinuesAfterHighWaterMark() throws IOException {
+        NonTransactionalSequences sequences = create(1, "urn:a", 99);
+        assertEquals(100, sequences.get(1).nextValue());
+        assertEquals(101, sequences.get(1).nextValue());
+        long highWaterMark = sequences.get(1).highWaterMark();
+        assertTrue(highWaterMark >= 100 + BLOCK_SIZE - 1);
+
+        NonTransactionalSequences restored = newNonTransactionalSequences();
+        restored.read(iri -> 1);
+        assertEquals(highWaterMark, restored.get(1).highWaterMark());
+        assertEquals(highWaterMark + 1, restored.get(1).nextValue());
+    }
+
+    @Test
+    public void testLastValues() throws IOException {
+        NonTransactionalSequences sequences = create(1, "urn:a", Long.MAX_VALUE - 3);
+        NonTransactionalSequences.Sequence sequence = sequences.get(1);
+        try {
+            sequence.nextValues(4);
+            fail("Must fail with exception");
+        } catch (PluginException e) {
+            // Expected
+        }
+        // A failed reservation must not advance the sequence
+        assertEquals(Long.MAX_VALUE - 2, sequence.nextValues(3));
+        try {
+            sequence.nextValues(1);
+            fail("Must fail with exception");
+        } catch (PluginException e) {
+            // Expected
+        }
+        assertEquals(Long.MAX_VALUE, sequence.highWaterMark());
+    }
+
+    @Test
+    public void testRollback() throws IOException {
+        NonTransactionalSequences sequences = create(1, "urn:a", 0);
+        sequences.createStriped(2, "urn:b", 0);
+        assertTrue(sequences.drop("urn:a"));
+        assertFalse(sequences.exists("urn:a"));
+        assertTrue(sequences.exists("urn:b"));
+        sequences.prepare();
+        // Not visible before the transaction completes
+        assertNull(sequences.get(2));
+        sequences.rollback();
+
+        assertFalse(sequences.exists("urn:b"));
+        NonTransactionalSequences restored = newNonTransactionalSequences();
+        restored.read(iri -> "urn:a".equals(iri) ? 1 : 2);
+        assertEquals(1, restored.get(1).nextValue());
+        assertNull(restored.get(2));
+    }
+
+    @Test
+    public void testDrop() throws IOException {
+        NonTransactionalSequences sequences = create(1, "urn:a", 0);
+        assertFalse(sequences.drop("urn:b"));
+        assertTrue(sequences.drop("urn:a"));
+        sequences.prepare();
+        sequences.commit();
+        assertNull(sequences.get(1));
+        assertTrue(sequences.isEmpty());
+
+        NonTransactionalSequences restored = newNonTransactionalSequences();
+        restored.read(iri -> 1);
+        assertTrue(restored.isEmpty());
+    }
+
+    @Test
+    public void testTimeBasedIds() throws IOException {
+        NonTransactionalSequences sequences = newNonTransactionalSequences();
+        sequences.createTimeBased(1, "urn:ids");
+        sequences.prepare();
+        sequences.commit();
+        NonTransactionalSequences.Sequence sequence = sequences.get(1);
+
+        long first = sequence.nextValue();
+        assertEquals(NOW - 1577836800000L, first >>> 22);
+        assertEquals(NODE_ID, first >>> 12 & 1023);
+        assertEquals(0, first & 4095);
+        assertEquals(first + 1, sequence.nextValue());
+
+        // The counter of a millisecond is exhausted, so the IDs continue with the next one
+        long last = first;
+        for (int i = 2; i < 4096; i++) {
+            last = sequence.nextValue();
+        }
+        assertEquals(first + 4095, last);
+        long next = sequence.nextValue();
+        assertEquals((first >>> 22) + 1, next >>> 22);
+        assertEquals(0, next & 4095);
+
+        // The clock moves back
+        clock.set(NOW - 1000);
+        assertEquals(next + 1, sequence.nextValue());
+        clock.set(NOW + 5);
+        assertEquals((first >>> 22) + 5, sequence.nextValue() >>> 22);
+        assertTrue("The watermark must be ahead of the clock", sequence.highWaterMark() >>> 22 >= (first >>> 22) + 5);
+    }
+
+    @Test
+    public void testTimeBasedIdsAfterRestart() throws IOException {
+        NonTransactionalSequences sequences = newNonTransactionalSequences();
+        sequences.createTimeBased(1, "urn:ids");
+        sequences.createStriped(2, "urn:values", 0);
+        sequences.prepare();
+        sequences.commit();
+        long last = sequences.get(1).nextValue();
+        assertEquals(1, sequences.get(2).nextValue());
+
+        // Restarted with the clock set back
+        clock.set(NOW - 60_000);
+        NonTransactionalSequences restored = newNonTransactionalSequences();
+        restored.read(iri -> "urn:ids".equals(iri) ? 1 : 2);
+        long highWaterMark = restored.get(1).highWaterMark();
+        assertTrue(highWaterMark > last);
+        long next = restored.get(1).nextValue();
+        assertTrue("IDs must not be handed out twice", next > highWaterMark);
+        assertEquals(NODE_ID, next >>> 12 & 1023);
+        assertEquals(sequences.get(2).highWaterMark() + 1, restored.get(2).nextValue());
+    }
+
+    private NonTransactionalSequences create(long id, String iri, long value) throws IOException {
+        NonTransactionalSequences sequences = newNonTransactionalSequences();
+        sequences.createStriped(id, iri, value);
+        sequences.prepare();
+        sequences.commit();
+        return sequences;
+    }
+
+    private NonTransactionalSequences newNonTransactionalSequences() {
+        Path path = tmpFolder.getRoot().toPath().resolve("striped.js");
+        return new NonTransactionalSequences(path, new ObjectMapper(), BLOCK_SIZE, NODE_ID, clock::get);
+    }
+}
@@ -0,0 +1,68 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that {@link SequenceFile} reads back the committed values it wrote and reports malformed lines.
+ */
+public class TestSequenceFile {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        SequenceStore sequences = new SequenceStore();
+        sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        int slot = sequences.add(2, Fingerprints.ofIRI("urn:\u00e9"), -1);
+        sequences.addUnbound("urn:c", Fingerprints.ofIRI("urn:c"), Long.MAX_VALUE);
+        // Only committed values are written
+        sequences.setValue(slot, 5);
+
+        Path path = tmpFolder.getRoot().toPath().resolve("sequences.tsv");
+        assertEquals(3, SequenceFile.write(path, sequences, id -> id == 1 ? "urn:a" : "urn:\u00e9"));
+        assertFalse(Files.exists(path.resolveSibling("sequences.tsv.tmp")));
+
+        Map<String, Long> read = new HashMap<>();
+        assertEquals(3, SequenceFile.read(path, read::put));
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("urn:a", 10L);
+        expected.put("urn:\u00e9", -1L);
+        expected.put("urn:c", Long.MAX_VALUE);
+        assertEquals(expected, read);
+    }
+
+    @Test
+    public void testMalformedLines() throws IOException {
+        Path path = tmpFolder.getRoot().toPath().resolve("sequences.tsv");
+        Files.write(path, Arrays.asList("urn:a\t1", "", "urn:b 2"), StandardCharsets.UTF_8);
+        Map<String, Long> read = new HashMap<>();
+        try {
+            SequenceFile.read(path, read::put);
+            fail("A line without a tab must be reported");
+        } catch (IOException e) {
+            assertEquals("Expected an IRI and a value separated by a tab at line 3 of " + path, e.getMessage());
+        }
+
+        Files.write(path, Arrays.asList("urn:a\t1", "urn:b\tx"), StandardCharsets.UTF_8);
+        try {
+            SequenceFile.read(path, read::put);
+            fail("A value that is not a number must be reported");
+        } catch (IOException e) {
+            assertEquals("Invalid value at line 2 of " + path, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies the prefix lookups of {@link SequenceIndex} and that the index follows the changes of the store once built,
+ * keeping the sequences removed by the current transaction until it commits.
+ */
+public class TestSequenceIndex {
+    @Test
+    public void testWithPrefix() {
+        SequenceStore sequences = new SequenceStore();
+        SequenceIndex index = new SequenceIndex(sequences);
+        String[] iris = {"urn:a:1", "urn:a:2", "urn:a", "urn:ab:1", "urn:b:1", "urn:\uffff:1", "urn:\uffff\uffff"};
+        for (int i = 0; i < iris.length; i++) {
+            sequences.add(i + 1, Fingerprints.ofIRI(iris[i]), 0);
+        }
+        // Unbound sequences have no entity ID yet
+        sequences.addUnbound("urn:a:3", Fingerprints.ofIRI("urn:a:3"), 0);
+
+        List<String> resolved = new ArrayList<>();
+        index.withPrefix("urn:a:", id -> {
+            resolved.add(iris[(int) id - 1]);
+            return iris[(int) id - 1];
+        });
+        assertEquals("The index must be built once", iris.length, resolved.size());
+        index.withPrefix("urn:b:", id -> {
+            throw new AssertionError("Already built");
+        });
+
+        assertEquals(Arrays.asList("urn:a:1", "urn:a:2", "urn:a:3"), keys(index, "urn:a:"));
+        assertEquals(Arrays.asList("urn:a", "urn:a:1", "urn:a:2", "urn:a:3", "urn:ab:1"), keys(index, "urn:a"));
+        assertEquals(Arrays.asList("urn:\uffff:1", "urn:\uffff\uffff"), keys(index, "urn:\uffff"));
+        assertEquals(Collections.singletonList("urn:\uffff\uffff"), keys(index, "urn:\uffff\uffff"));
+        assertEquals(Collections.emptyList(), keys(index, "urn:c"));
+        assertEquals(iris.length + 1, keys(index, "").size());
+    }
+
+    @Test
+    public void testChanges() {
+        SequenceStore sequences = new SequenceStore();
+        SequenceIndex index = new SequenceIndex(sequences);
+        // Not built yet, nothing to record
+        index.add("urn:a:1", sequences.add(1, Fingerprints.ofIRI("urn:a:1"), 0));
+        assertEquals(Collections.singletonList("urn:a:1"), keys(index, "urn:a:"));
+
+        int slot = sequences.add(2, Fingerprints.ofIRI("urn:a:2"), 0);
+        index.add("urn:a:2", slot);
+        assertEquals(slot, (int) index.withPrefix("urn:a:2", id -> "urn:a:" + id).get("urn:a:2"));
+
+        sequences.remove(sequences.slot(1));
+        index.remove("urn:a:1");
+        assertEquals("Removed sequences must be kept until committed", SequenceStore.NO_SLOT,
+                (int) index.withPrefix("urn:a:1", id -> "urn:a:" + id).get("urn:a:1"));
+        index.commit();
+        assertEquals(Collections.singletonList("urn:a:2"), keys(index, "urn:a:"));
+
+        index.clear();
+        sequences.add(3, Fingerprints.ofIRI("urn:a:3"), 0);
+        assertEquals("Rebuilt from the store", Arrays.asList("urn:a:2", "urn:a:3"), keys(index, "urn:a:"));
+    }
+
+    @Test
+    public void testBuildDuringTransaction() {
+        SequenceStore sequences = new SequenceStore();
+        SequenceIndex index = new SequenceIndex(sequences);
+        int dropped = sequences.add(1, Fingerprints.ofIRI("urn:a:1"), 0);
+        int droppedUnbound = sequences.addUnbound("urn:a:2", Fingerprints.ofIRI("urn:a:2"), 0);
+        int recreated = sequences.add(3, Fingerprints.ofIRI("urn:a:3"), 0);
+        sequences.commit();
+
+        sequences.remove(dropped);
+        sequences.remove(droppedUnbound);
+        sequences.remove(recreated);
+        recreated = sequences.add(3, Fingerprints.ofIRI("urn:a:3"), 5);
+        int added = sequences.add(4, Fingerprints.ofIRI("urn:a:4"), 0);
+        // Built by a reader of the committed values, which still sees the dropped sequences
+        Map<String, Integer> slots = index.withPrefix("urn:a:", id -> "urn:a:" + id);
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("urn:a:1", SequenceStore.NO_SLOT);
+        expected.put("urn:a:2", SequenceStore.NO_SLOT);
+        expected.put("urn:a:3", recreated);
+        expected.put("urn:a:4", added);
+        assertEquals(expected, slots);
+
+        sequences.commit();
+        index.commit();
+        assertEquals(Arrays.asList("urn:a:3", "urn:a:4"), keys(index, "urn:a:"));
+    }
+
+    private static List<String> keys(SequenceIndex index, String prefix) {
+        return new ArrayList<>(index.withPrefix(prefix, id -> "urn:a:" + id).keySet());
+    }
+}
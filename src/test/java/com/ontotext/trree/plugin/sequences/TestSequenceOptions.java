@@ -0,0 +1,37 @@
+package com.ontotext.trree.plugin.sequences;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Verifies that {@link SequenceOptions} are combined and stored without affecting the options already set.
+ */
+public class TestSequenceOptions {
+    @Test
+    public void testCombine() {
+        SequenceOptions cached = SequenceOptions.withCacheSize(null, 100);
+        assertEquals(new SequenceOptions(100), cached);
+        assertNull("Defaults must not be kept as options", SequenceOptions.withCacheSize(cached, 1));
+
+        SequenceOptions minting = SequenceOptions.withIriPrefix(cached, "urn:doc:");
+        assertEquals(new SequenceOptions(100, "urn:doc:"), minting);
+        assertEquals(new SequenceOptions(0, "urn:doc:"), SequenceOptions.withCacheSize(minting, 0));
+        assertEquals(cached, SequenceOptions.withIriPrefix(minting, null));
+        assertNull(SequenceOptions.withIriPrefix(SequenceOptions.withCacheSize(minting, 0), null));
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals("{\"cacheSize\":100}", objectMapper.writeValueAsString(new SequenceOptions(100)));
+        assertEquals(new SequenceOptions(100), objectMapper.readValue("{\"cacheSize\":100}", SequenceOptions.class));
+
+        SequenceOptions minting = new SequenceOptions(0, "urn:doc:");
+        assertEquals(minting, objectMapper.readValue(objectMapper.writeValueAsString(minting), SequenceOptions.class));
+    }
+}
@@ -0,0 +1,400 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies the {@link SequenceStore}: slot management, the incrementally maintained fingerprint and the heap
+ * footprint of large numbers of sequences.
+ */
+public class TestSequenceStore {
+    private static final int MAX_BYTES_PER_SEQUENCE = 100;
+
+    @Test
+    public void testSlots() {
+        SequenceStore sequences = new SequenceStore();
+        assertEquals(SequenceStore.NO_SLOT, sequences.slot(42));
+
+        int first = sequences.add(42, Fingerprints.ofIRI("urn:a"), 10);
+        int second = sequences.add(43, Fingerprints.ofIRI("urn:b"), 20);
+        assertEquals(first, sequences.slot(42));
+        assertEquals(42, sequences.id(first));
+        assertEquals(2, sequences.size());
+
+        sequences.remove(first);
+        assertEquals(SequenceStore.NO_SLOT, sequences.slot(42));
+        assertEquals("Free slots must be reused", first, sequences.add(44, Fingerprints.ofIRI("urn:c"), 30));
+        assertEquals(20, sequences.currentValue(second));
+        assertEquals(30, sequences.currentValue(sequences.slot(44)));
+    }
+
+    @Test
+    public void testUnboundSequences() {
+        SequenceStore sequences = new SequenceStore();
+        int unbound = sequences.addUnbound("urn:a", Fingerprints.ofIRI("urn:a"), 10);
+        sequences.add(2, Fingerprints.ofIRI("urn:b"), 20);
+        assertEquals(2, sequences.size());
+        assertTrue(sequences.hasUnbound());
+        assertEquals(fingerprintOf("urn:a", 10) + fingerprintOf("urn:b", 20), sequences.fingerprint());
+        assertEquals("urn:a", sequences.iri(unbound, id -> "urn:b"));
+
+        assertEquals(SequenceStore.NO_SLOT, sequences.slot(1));
+        assertEquals(SequenceStore.NO_SLOT, sequences.bind("urn:b", 2));
+        assertEquals(unbound, sequences.bind("urn:a", 1));
+        assertEquals(unbound, sequences.slot(1));
+        assertEquals(SequenceStore.NO_SLOT, sequences.bind("urn:a", 1));
+        assertFalse(sequences.hasUnbound());
+        assertEquals("urn:resolved", sequences.iri(unbound, id -> "urn:resolved"));
+        assertEquals(10, sequences.currentValue(unbound));
+
+        int dropped = sequences.addUnbound("urn:c", Fingerprints.ofIRI("urn:c"), 30);
+        sequences.remove(dropped);
+        assertFalse(sequences.hasUnbound());
+        assertEquals(SequenceStore.NO_SLOT, sequences.bind("urn:c", 3));
+        assertEquals(fingerprintOf("urn:a", 10) + fingerprintOf("urn:b", 20), sequences.fingerprint());
+    }
+
+    @Test
+    public void testFingerprintIsOrderIndependent() {
+        SequenceStore ab = new SequenceStore();
+        ab.add(1, Fingerprints.ofIRI("urn:a"), 1);
+        ab.add(2, Fingerprints.ofIRI("urn:b"), 2);
+        SequenceStore ba = new SequenceStore();
+        ba.add(3, Fingerprints.ofIRI("urn:b"), 2);
+        ba.add(4, Fingerprints.ofIRI("urn:a"), 1);
+        assertEquals("The fingerprint must depend on IRIs and values only", ab.fingerprint(), ba.fingerprint());
+
+        SequenceStore swapped = new SequenceStore();
+        swapped.add(1, Fingerprints.ofIRI("urn:a"), 2);
+        swapped.add(2, Fingerprints.ofIRI("urn:b"), 1);
+        assertNotEquals("Swapping values between sequences must change the fingerprint",
+                ab.fingerprint(), swapped.fingerprint());
+
+        ab.remove(ab.slot(1));
+        ab.remove(ab.slot(2));
+        assertEquals(0, ab.fingerprint());
+    }
+
+    @Test
+    public void testFingerprintTracksPreparedValue() {
+        SequenceStore sequences = new SequenceStore();
+        int slot = sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        sequences.commit();
+        long committed = sequences.fingerprint();
+
+        sequences.nextValue(slot);
+        assertEquals("Uncommitted values must not affect the fingerprint", committed, sequences.fingerprint());
+
+        sequences.prepare(slot);
+        assertEquals(fingerprintOf("urn:a", 11), sequences.fingerprint());
+
+        sequences.rollback(slot);
+        assertEquals(committed, sequences.fingerprint());
+
+        sequences.nextValue(slot);
+        sequences.prepare(slot);
+        sequences.commit(slot);
+        assertEquals(fingerprintOf("urn:a", 11), sequences.fingerprint());
+    }
+
+    @Test
+    public void testCachedSequence() {
+        SequenceStore sequences = new SequenceStore();
+        int slot = sequences.add(1, Fingerprints.ofIRI("urn:a"), 0);
+        sequences.setOptions(slot, new SequenceOptions(10));
+        sequences.commit();
+
+        assertEquals(1, sequences.nextValue(slot));
+        assertEquals("The first value must reserve a block", 10, sequences.currentValue(slot));
+        for (long value = 2; value <= 10; value++) {
+            assertEquals(value, sequences.nextValue(slot));
+        }
+        assertEquals("Values within the block must not change the reserved value", 10, sequences.currentValue(slot));
+        assertEquals(10, sequences.lastValue(slot));
+        assertEquals(11, sequences.nextValue(slot));
+        assertEquals(20, sequences.currentValue(slot));
+
+        sequences.rollback(slot);
+        assertEquals(0, sequences.currentValue(slot));
+        assertEquals("Values handed out before a rollback must not be reused", 12, sequences.nextValue(slot));
+        assertEquals(21, sequences.currentValue(slot));
+
+        sequences.reset(slot, 99);
+        assertEquals("A reset must discard the reserved values", 100, sequences.nextValue(slot));
+        assertEquals(109, sequences.currentValue(slot));
+
+        sequences.setOptions(slot, null);
+        assertEquals(110, sequences.nextValue(slot));
+        assertEquals(110, sequences.currentValue(slot));
+    }
+
+    @Test
+    public void testNextValues() {
+        SequenceStore sequences = new SequenceStore();
+        int plain = sequences.add(1, Fingerprints.ofIRI("urn:a"), 0);
+        assertEquals(1, sequences.nextValues(plain, 1000));
+        assertEquals(1000, sequences.currentValue(plain));
+        assertEquals(1001, sequences.nextValue(plain));
+
+        int cached = sequences.add(2, Fingerprints.ofIRI("urn:b"), 0);
+        sequences.setOptions(cached, new SequenceOptions(100));
+        assertEquals(1, sequences.nextValues(cached, 10));
+        assertEquals(100, sequences.currentValue(cached));
+        assertEquals(11, sequences.nextValues(cached, 90));
+        assertEquals("A range that fits in the block must not reserve", 100, sequences.currentValue(cached));
+        assertEquals(101, sequences.nextValues(cached, 250));
+        assertEquals("A range larger than the block must be reserved in full", 350, sequences.currentValue(cached));
+        assertEquals(351, sequences.nextValue(cached));
+        assertEquals(450, sequences.currentValue(cached));
+    }
+
+    @Test
+    public void testNextValuesOverflow() {
+        SequenceStore sequences = new SequenceStore();
+        int plain = sequences.add(1, Fingerprints.ofIRI("urn:a"), Long.MAX_VALUE - 10);
+        assertNextValuesFail(sequences, plain, Long.MAX_VALUE);
+        assertNextValuesFail(sequences, plain, 11);
+        assertEquals("A failed range must not change the sequence", Long.MAX_VALUE - 10,
+                sequences.currentValue(plain));
+        assertEquals(Long.MAX_VALUE - 9, sequences.nextValues(plain, 10));
+        assertNextValuesFail(sequences, plain, 1);
+
+        int cached = sequences.add(2, Fingerprints.ofIRI("urn:b"), Long.MAX_VALUE - 10);
+        sequences.setOptions(cached, new SequenceOptions(100));
+        assertEquals(Long.MAX_VALUE - 9, sequences.nextValue(cached));
+        assertEquals("A block past the largest value must end at the range", Long.MAX_VALUE - 9,
+                sequences.currentValue(cached));
+        assertNextValuesFail(sequences, cached, Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE - 8, sequences.nextValues(cached, 9));
+        assertNextValuesFail(sequences, cached, 1);
+        assertEquals(Long.MAX_VALUE, sequences.lastValue(cached));
+    }
+
+    private static void assertNextValuesFail(SequenceStore sequences, int slot, long count) {
+        try {
+            sequences.nextValues(slot, count);
+            fail("Must fail with exception");
+        } catch (ArithmeticException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testReadCommittedValue() {
+        SequenceStore sequences = new SequenceStore();
+        int bound = sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        sequences.addUnbound("urn:b", Fingerprints.ofIRI("urn:b"), 20);
+        assertNull("Added sequences must not be read before they are committed",
+                sequences.readCommittedValue(1, () -> "urn:a"));
+        sequences.commit();
+        assertEquals(Long.valueOf(10), sequences.readCommittedValue(1, () -> "urn:a"));
+        assertEquals(Long.valueOf(20), sequences.readCommittedValue(2, () -> "urn:b"));
+        assertNull(sequences.readCommittedValue(3, () -> "urn:c"));
+        assertTrue("Reading must not bind", sequences.hasUnbound());
+
+        sequences.nextValue(bound);
+        sequences.prepare(bound);
+        assertEquals(Long.valueOf(10), sequences.readCommittedValue(1, () -> "urn:a"));
+        sequences.commit(bound);
+        assertEquals(Long.valueOf(11), sequences.readCommittedValue(1, () -> "urn:a"));
+    }
+
+    @Test
+    public void testReadCommittedValueIgnoresUncommittedChanges() {
+        SequenceStore sequences = new SequenceStore();
+        int dropped = sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        int droppedUnbound = sequences.addUnbound("urn:b", Fingerprints.ofIRI("urn:b"), 20);
+        SequenceOptions options = new SequenceOptions(10);
+        sequences.setOptions(dropped, options);
+        sequences.commit();
+        long fingerprint = sequences.fingerprint();
+
+        sequences.remove(dropped);
+        sequences.remove(droppedUnbound);
+        sequences.add(3, Fingerprints.ofIRI("urn:c"), 30);
+        sequences.add(1, Fingerprints.ofIRI("urn:a"), 100);
+        sequences.addUnbound("urn:b", Fingerprints.ofIRI("urn:b"), 200);
+        sequences.bind("urn:b", 2);
+        int uncommitted = sequences.add(4, Fingerprints.ofIRI("urn:d"), 40);
+        sequences.remove(uncommitted);
+        assertEquals("Dropped sequences must be read until committed",
+                Long.valueOf(10), sequences.readCommittedValue(1, () -> "urn:a"));
+        assertEquals(Long.valueOf(20), sequences.readCommittedValue(2, () -> "urn:b"));
+        assertNull(sequences.readCommittedValue(3, () -> "urn:c"));
+        assertNull(sequences.readCommittedValue(4, () -> "urn:d"));
+        assertTrue("The slots of dropped sequences must not be reused before commit",
+                sequences.slot(3) != dropped && sequences.slot(3) != droppedUnbound);
+
+        sequences.rollback();
+        assertEquals("Rollback must restore the dropped sequences",
+                Long.valueOf(10), sequences.readCommittedValue(1, () -> "urn:a"));
+        assertEquals(Long.valueOf(20), sequences.readCommittedValue(2, () -> "urn:b"));
+        assertNull("Rollback must remove the created sequences", sequences.readCommittedValue(3, () -> "urn:c"));
+        assertNull(sequences.readCommittedValue(4, () -> "urn:d"));
+        assertEquals(2, sequences.size());
+        assertEquals(dropped, sequences.slot(1));
+        assertEquals(droppedUnbound, sequences.unboundSlot("urn:b"));
+        assertEquals(SequenceStore.NO_SLOT, sequences.slot(2));
+        assertEquals(SequenceStore.NO_SLOT, sequences.slot(3));
+        assertEquals(options, sequences.options(dropped));
+        assertEquals(fingerprint, sequences.fingerprint());
+    }
+
+    @Test
+    public void testReadCommittedValueConcurrently() throws InterruptedException {
+        SequenceStore sequences = new SequenceStore();
+        int slot = sequences.add(1, Fingerprints.ofIRI("urn:a"), 0);
+        sequences.commit();
+
+        runWithReaders(() -> {
+            long[] last = {0};
+            return () -> {
+                Long value = sequences.readCommittedValue(1, () -> "urn:a");
+                assertTrue("Committed values must not go back", value != null && value >= last[0]);
+                last[0] = value;
+            };
+        }, () -> {
+            // Committing values while adding and removing sequences, which grows and rehashes the store
+            for (int i = 0; i < 100_000; i++) {
+                sequences.nextValue(slot);
+                sequences.prepare(slot);
+                sequences.commit(slot);
+                int other = sequences.add(i + 2, Fingerprints.ofIRI("urn:b" + i), 0);
+                if (i % 2 == 0) {
+                    sequences.remove(other);
+                }
+            }
+        });
+
+        assertEquals(Long.valueOf(100_000), sequences.readCommittedValue(1, () -> "urn:a"));
+    }
+
+    @Test
+    public void testReadCommittedValueConcurrentlyWithCreateAndDrop() throws InterruptedException {
+        SequenceStore sequences = new SequenceStore();
+        int first = sequences.add(1, Fingerprints.ofIRI("urn:a"), 0);
+        int second = sequences.add(2, Fingerprints.ofIRI("urn:b"), 0);
+        sequences.add(3, Fingerprints.ofIRI("urn:c"), 0);
+        sequences.commit();
+
+        runWithReaders(() -> {
+            long[] last = {0};
+            return () -> {
+                long firstValue = sequences.readCommittedValue(1, () -> "urn:a");
+                assertTrue("Values committed together must be read together",
+                        sequences.readCommittedValue(2, () -> "urn:b") >= firstValue);
+                Long recreated = sequences.readCommittedValue(3, () -> "urn:c");
+                assertTrue("A sequence dropped and created again must stay committed",
+                        recreated != null && recreated >= last[0]);
+                last[0] = recreated;
+                assertNull("Uncommitted sequences must not be read", sequences.readCommittedValue(4, () -> "urn:d"));
+            };
+        }, () -> {
+            for (int i = 1; i <= 100_000; i++) {
+                sequences.nextValue(first);
+                sequences.nextValue(second);
+                int uncommitted = sequences.add(4, Fingerprints.ofIRI("urn:d"), i);
+                sequences.remove(sequences.slot(3));
+                sequences.add(3, Fingerprints.ofIRI("urn:c"), i);
+                sequences.remove(uncommitted);
+                sequences.commit(first, second);
+            }
+        });
+
+        assertEquals(Long.valueOf(100_000), sequences.readCommittedValue(3, () -> "urn:c"));
+        assertEquals(3, sequences.size());
+    }
+
+    /**
+     * Runs the writer while concurrent readers, each created by the given factory, are run repeatedly until the
+     * writer is done, and checks that none of them failed.
+     */
+    private static void runWithReaders(Supplier<Runnable> readerFactory, Runnable writer)
+            throws InterruptedException {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> readerError = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            Runnable reader = readerFactory.get();
+            readers[i] = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        reader.run();
+                    }
+                } catch (Throwable e) {
+                    readerError.set(e);
+                }
+            });
+            readers[i].start();
+        }
+        try {
+            writer.run();
+        } finally {
+            done.set(true);
+            for (Thread thread : readers) {
+                thread.join();
+            }
+        }
+        assertNull(readerError.get());
+    }
+
+    @Test
+    public void testHeapFootprintOneMillion() {
+        assumeBenchmarkEnabled();
+        assertHeapFootprint(1_000_000);
+    }
+
+    @Test
+    public void testHeapFootprintTenMillion() {
+        assumeBenchmarkEnabled();
+        Assume.assumeTrue("Not enough heap for 10M sequences",
+                Runtime.getRuntime().maxMemory() > 3L * MAX_BYTES_PER_SEQUENCE * 10_000_000);
+        assertHeapFootprint(10_000_000);
+    }
+
+    /**
+     * The heap footprint is measured from the used heap after full collections, which depends on the collector, so
+     * it is checked only with -Dgraphdb.sequences.benchmark=true.
+     */
+    private static void assumeBenchmarkEnabled() {
+        Assume.assumeTrue("Benchmark not enabled", Boolean.getBoolean("graphdb.sequences.benchmark"));
+    }
+
+    private static void assertHeapFootprint(int count) {
+        long before = usedHeap();
+        SequenceStore sequences = new SequenceStore();
+        for (int i = 1; i <= count; i++) {
+            sequences.add(i, Fingerprints.ofIRI("urn:seq" + i), i);
+        }
+        sequences.commit();
+        long bytesPerSequence = (usedHeap() - before) / count;
+        assertEquals(count, sequences.size());
+        assertTrue("Sequences use " + bytesPerSequence + " bytes each",
+                bytesPerSequence <= MAX_BYTES_PER_SEQUENCE);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long fingerprintOf(String iri, long value) {
+        SequenceStore sequences = new SequenceStore();
+        sequences.add(1, Fingerprints.ofIRI(iri), value);
+        return sequences.fingerprint();
+    }
+}
@@ -0,0 +1,83 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the {@link SequencesMetrics} counters, the {@link LatencyHistogram} and the MBean view of the metrics.
+ */
+public class TestSequencesMetrics {
+    @Test
+    public void testCounters() {
+        SequencesMetrics metrics = new SequencesMetrics(() -> 7, () -> 3, () -> 1024, () -> -42);
+        metrics.transactionFinished(true, 2, 1001);
+        metrics.transactionFinished(false, 1, 1);
+        metrics.transactionFinished(true, 0, 0);
+        metrics.nonTransactionalValuesObtained(5);
+        metrics.nextValueTimed(TimeUnit.MICROSECONDS.toNanos(10));
+        metrics.nextValueTimed(TimeUnit.MICROSECONDS.toNanos(30));
+        metrics.resetStatementsAdded(2);
+        metrics.persisted(100, TimeUnit.MILLISECONDS.toNanos(1), false);
+        metrics.persisted(900, TimeUnit.MILLISECONDS.toNanos(3), true);
+
+        Map<String, Long> snapshot = metrics.snapshot();
+        assertEquals(7, (long) snapshot.get("sequences"));
+        assertEquals(4, (long) snapshot.get("nextValueCalls"));
+        assertEquals(1007, (long) snapshot.get("valuesObtained"));
+        assertEquals(2, (long) snapshot.get("nextValueCount"));
+        assertEquals(20, (long) snapshot.get("nextValueMeanMicros"));
+        assertEquals(30, (long) snapshot.get("nextValueMaxMicros"));
+        assertEquals(2, (long) snapshot.get("resetStatements"));
+        assertEquals(2, (long) snapshot.get("transactionsCommitted"));
+        assertEquals(1, (long) snapshot.get("transactionsAborted"));
+        assertEquals(1000, (long) snapshot.get("persistedBytes"));
+        assertEquals(1, (long) snapshot.get("snapshotsWritten"));
+        assertEquals(2, (long) snapshot.get("persistCount"));
+        assertEquals(2000, (long) snapshot.get("persistMeanMicros"));
+        assertEquals(3000, (long) snapshot.get("persistMaxMicros"));
+        assertEquals(1024, (long) snapshot.get("stateBytes"));
+        assertEquals(3, (long) snapshot.get("fingerprintsKept"));
+        assertEquals(-42, (long) snapshot.get("fingerprint"));
+        assertEquals(SequencesMetrics.METRIC_COUNT, snapshot.size());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileMicros(99));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertEquals(100, histogram.count());
+        // Reported as the upper bound of the bucket, within a factor of two
+        long p50 = histogram.percentileMicros(50);
+        assertTrue(p50 >= 100 && p50 <= 200);
+        long p99 = histogram.percentileMicros(99);
+        assertTrue(p99 >= 100 && p99 <= 200);
+        assertEquals(50_000, histogram.percentileMicros(100));
+        assertEquals(50_000, histogram.maxMicros());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        SequencesMetrics metrics = new SequencesMetrics(() -> 5, () -> 1, () -> 0, () -> 0);
+        metrics.transactionFinished(true, 1, 10);
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectName name = new ObjectName("com.ontotext.graphdb.plugins:type=Sequences");
+        server.registerMBean(metrics, name);
+        assertEquals(5L, server.getAttribute(name, "sequences"));
+        assertEquals(10L, server.getAttribute(name, "valuesObtained"));
+        assertEquals(metrics.snapshot().size(), server.getMBeanInfo(name).getAttributes().length);
+    }
+}
@@ -1,30 +1,37 @@
 package com.ontotext.trree.plugin.sequences;
 
-import com.ontotext.graphdb.Config;
-import com.ontotext.test.TemporaryLocalFolder;
-import com.ontotext.test.functional.base.SingleRepositoryFunctionalTest;
-import com.ontotext.test.utils.OwlimSeRepositoryDescription;
-import com.ontotext.trree.graphdb.GraphDBRepositoryFactory;
-import com.ontotext.trree.graphdb.GraphDBSailFactory;
 import org.eclipse.rdf4j.model.Literal;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.vocabulary.XSD;
 import org.eclipse.rdf4j.query.TupleQueryResult;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.config.RepositoryConfig;
-import org.eclipse.rdf4j.repository.sail.config.SailRepositoryConfig;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.MatcherAssert;
-import org.junit.AfterClass;
-import org.junit.BeforeClass;
-import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -32,31 +39,11 @@ import static org.junit.Assert.fail;
 /**
  * Tests for using the Sequences plugin
  */
-public class TestSequencesPlugin extends SingleRepositoryFunctionalTest {
-    @ClassRule
-    public static TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
-
-    @BeforeClass
-    public static void setWorkDir() {
-        System.setProperty("graphdb.home.work", String.valueOf(tmpFolder.getRoot()));
-        Config.reset();
-    }
-
-    @AfterClass
-    public static void resetWorkDir() {
-        System.clearProperty("graphdb.home.work");
-        Config.reset();
-    }
-    @Override
-    protected RepositoryConfig createRepositoryConfiguration() {
-        final OwlimSeRepositoryDescription repositoryDescription = new OwlimSeRepositoryDescription();
-        final OwlimSeRepositoryDescription.OWLIMSailConfigEx sailConfig = repositoryDescription.getOwlimSailConfig();
-        sailConfig.setRuleset("empty");
-        sailConfig.setType(GraphDBSailFactory.SAIL_TYPE);
-        SailRepositoryConfig sailrepositoryConfig = new SailRepositoryConfig(sailConfig);
-        sailrepositoryConfig.setType(GraphDBRepositoryFactory.REPOSITORY_TYPE);
-        return repositoryDescription.getRepositoryConfig();
-    }
+public class TestSequencesPlugin extends SequencesFunctionalTestBase {
+    private static final String TOP_RANKED_DOCUMENT_IDS_QUERY = "select ?doc ?id {"
+            + " ?doc a <urn:Doc> ; <urn:rank> ?rank ."
+            + " <urn:myseq1> <http://www.ontotext.com/plugins/sequences#nextValue> ?id ."
+            + " filter(?rank >= 96) }";
 
     @Test
     public void testUse() {
@@ -111,6 +98,583 @@ public class TestSequencesPlugin extends SingleRepositoryFunctionalTest {
         }
     }
 
+    @Test
+    public void testUseWithManyIdleSequences() {
+        runCreate(null, 90L);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            StringBuilder update = new StringBuilder("insert data {");
+            for (int i = 0; i < 10_000; i++) {
+                update.append(" <urn:idle").append(i).append("> <http://www.ontotext.com/plugins/sequences#create> 5 .");
+            }
+            connection.prepareUpdate(update.append(" }").toString()).execute();
+            connection.commit();
+        }
+        runUseTest(1, 90, true);
+        runUseTest(4, 92, false);
+        restartRepository();
+        runUseTest(4, 92, true);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            assertEquals(5, getNextValue(connection, "urn:idle9999"));
+            connection.rollback();
+        }
+    }
+
+    @Test
+    public void testCachedSequence() {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate("insert data { <urn:cached> <http://www.ontotext.com/plugins/sequences#create> [] ;"
+                    + " <http://www.ontotext.com/plugins/sequences#cache> 100 }").execute();
+            connection.commit();
+        }
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            assertEquals(1, getNextValue(connection, "urn:cached"));
+            assertEquals(2, getNextValue(connection, "urn:cached"));
+            assertEquals(2, getCurrentValue(connection, "urn:cached"));
+            connection.rollback();
+        }
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            // Values handed out in a rolled back transaction are skipped
+            assertEquals(3, getNextValue(connection, "urn:cached"));
+            connection.commit();
+        }
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            assertEquals(4, getNextValue(connection, "urn:cached"));
+            connection.commit();
+        }
+
+        restartRepository();
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            // The rest of the reserved block is skipped after a restart
+            assertEquals(103, getNextValue(connection, "urn:cached"));
+            assertEquals(104, getNextValue(connection, "urn:cached"));
+            connection.commit();
+        }
+    }
+
+    @Test
+    public void testNextValues() {
+        runCreate(null, 5L);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            assertEquals(1, getNextValue(connection, "urn:myseq1"));
+            try (TupleQueryResult tqr = connection.prepareTupleQuery("select ?value { graph <urn:myseq1> {"
+                    + " 1000 <http://www.ontotext.com/plugins/sequences#nextValues> ?value } }").evaluate()) {
+                long expected = 2;
+                while (tqr.hasNext()) {
+                    assertEquals(expected++, ((Literal) tqr.next().getValue("value")).longValue());
+                }
+                assertEquals(1002, expected);
+            }
+            assertEquals(1001, getCurrentValue(connection, "urn:myseq1"));
+            connection.commit();
+        }
+        restartRepository();
+        runUseTest(1002, 5, true);
+    }
+
+    @Test
+    public void testCommittedValue() {
+        runCreate(null, 15L);
+        runUseTest(1, 15, true);
+        runUseTest(4, 17, false);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            assertEquals(3, getCurrentValue(connection, "urn:myseq1"));
+            assertEquals(16, getCurrentValue(connection, "urn:myseq2"));
+
+            try (RepositoryConnection writer = getRepository().getConnection()) {
+                writer.begin();
+                prepareSequences(writer);
+                assertEquals(4, getNextValue(writer, "urn:myseq1"));
+                // Not committed yet
+                assertEquals(3, getCurrentValue(connection, "urn:myseq1"));
+                writer.commit();
+            }
+            assertEquals(4, getCurrentValue(connection, "urn:myseq1"));
+
+            restartRepository();
+        }
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            assertEquals(4, getCurrentValue(connection, "urn:myseq1"));
+            try {
+                getCurrentValue(connection, "urn:myseq3");
+                fail("Must fail with exception");
+            } catch (Exception e) {
+                MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("No such sequence: urn:myseq3"));
+            }
+        }
+    }
+
+    @Test
+    public void testStats() {
+        runCreate(null, 5L);
+        runUseTest(1, 5, true);
+        runUseTest(4, 7, false);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            Map<String, Long> stats = new HashMap<>();
+            try (TupleQueryResult tqr = connection.prepareTupleQuery("select ?metric ?value {" +
+                    "?metric <http://www.ontotext.com/plugins/sequences#stats> ?value }").evaluate()) {
+                tqr.forEach(bindings -> stats.put(bindings.getValue("metric").stringValue(),
+                        ((Literal) bindings.getValue("value")).longValue()));
+            }
+            assertEquals(2L, (long) stats.get("http://www.ontotext.com/plugins/sequences#sequences"));
+            assertEquals(10L, (long) stats.get("http://www.ontotext.com/plugins/sequences#valuesObtained"));
+            assertEquals(1L, (long) stats.get("http://www.ontotext.com/plugins/sequences#transactionsAborted"));
+        }
+    }
+
+    @Test
+    public void testOneResetStatementPerSequenceAtCommit() {
+        runCreate(null, null);
+        long fingerprintBefore = getStat("fingerprint");
+        long resetStatements = getStat("resetStatements");
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            for (int i = 1; i <= 100; i++) {
+                assertEquals(i, getNextValue(connection, "urn:myseq1"));
+            }
+            assertEquals(1, getNextValue(connection, "urn:myseq2"));
+            assertEquals(2, getNextValue(connection, "urn:myseq2"));
+            // Nothing is added while the values are obtained
+            assertEquals(resetStatements, getStat("resetStatements"));
+            connection.commit();
+        }
+        // The reset statements are counted once they reach the transaction
+        assertEquals(resetStatements + 2, getStat("resetStatements"));
+        long fingerprintAfter = getStat("fingerprint");
+        assertTrue(fingerprintAfter != fingerprintBefore);
+
+        // Replaying the transaction on the state before it applies its reset statements, which must lead to the
+        // same state
+        dropSequence("urn:myseq1");
+        dropSequence("urn:myseq2");
+        runCreate(null, null);
+        assertEquals(fingerprintBefore, getStat("fingerprint"));
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate("insert data {"
+                    + " <urn:myseq1> <http://www.ontotext.com/plugins/sequences#reset> 101 ."
+                    + " <urn:myseq2> <http://www.ontotext.com/plugins/sequences#reset> 3 }").execute();
+            connection.commit();
+        }
+        assertEquals(fingerprintAfter, getStat("fingerprint"));
+    }
+
+    @Test
+    public void testRollbackUndoesCreateAndDrop() {
+        runCreate(null, 5L);
+        long fingerprint = getStat("fingerprint");
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            createSequence(connection, "urn:rolledback", 10L);
+            dropSequence(connection, "urn:myseq2");
+            connection.rollback();
+        }
+        assertEquals(fingerprint, getStat("fingerprint"));
+        assertFalse(listSequences(null).containsKey("urn:rolledback"));
+        assertTrue(listSequences(null).containsKey("urn:myseq2"));
+
+        // The state restored from disk must match the one kept in memory
+        restartRepository();
+        assertEquals(fingerprint, getStat("fingerprint"));
+        assertFalse(listSequences(null).containsKey("urn:rolledback"));
+        runUseTest(1, 5, true);
+    }
+
+    @Test
+    public void testFingerprintOfMigratedState() throws IOException {
+        runCreate(null, 5L);
+        long fingerprint = getStat("fingerprint");
+        Path dataDirectory;
+        try (Stream<Path> files = Files.walk(tmpFolder.getRoot().toPath())) {
+            dataDirectory = files.filter(file -> file.getFileName().toString().equals("state.log")).findFirst()
+                    .orElseThrow(AssertionError::new).getParent();
+        }
+        getRepository().shutDown();
+        // A state.js of an earlier version, stored under the fingerprint GraphDB recorded, which was computed with
+        // another hash
+        List<Path> stateFiles;
+        try (Stream<Path> files = Files.list(dataDirectory)) {
+            stateFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : stateFiles) {
+            Files.delete(file);
+        }
+        Files.write(dataDirectory.resolve("state.js"), ("{\"" + fingerprint + "\":{\"urn:myseq1\":{\"value\":10},"
+                + "\"urn:myseq2\":{\"value\":4}}}").getBytes(StandardCharsets.UTF_8));
+        getRepository().init();
+        assertEquals("The recorded fingerprint must be reported until the state changes", fingerprint,
+                getStat("fingerprint"));
+
+        restartRepository();
+        assertEquals(fingerprint, getStat("fingerprint"));
+
+        runUseTest(11, 5, true);
+        assertNotEquals(fingerprint, getStat("fingerprint"));
+        restartRepository();
+        runUseTest(14, 7, true);
+    }
+
+    @Test
+    public void testValuesAreObtainedAfterFilters() {
+        runCreate(null, null);
+        insertRankedDocuments();
+
+        long valuesObtained = getStat("valuesObtained");
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            // The sequence pattern is independent of the others, so it may be evaluated anywhere in the join; values
+            // must be obtained only for the rows that pass the filter
+            List<Long> ids = new ArrayList<>();
+            try (TupleQueryResult tqr = connection.prepareTupleQuery(TOP_RANKED_DOCUMENT_IDS_QUERY).evaluate()) {
+                tqr.forEach(bindings -> ids.add(((Literal) bindings.getValue("id")).longValue()));
+            }
+            assertEquals(4, ids.size());
+            assertEquals(4, new HashSet<>(ids).size());
+            assertEquals(5, getNextValue(connection, "urn:myseq1"));
+            connection.commit();
+        }
+        assertEquals(5, getStat("valuesObtained") - valuesObtained);
+    }
+
+    @Test
+    public void testValuesAreObtainedLastInQueryPlan() {
+        runCreate(null, null);
+        insertRankedDocuments();
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            // The plan lists the patterns in evaluation order. Estimated like other patterns with a bound subject, the
+            // sequence pattern would be the most selective one and come first.
+            String plan = explainQuery(connection, TOP_RANKED_DOCUMENT_IDS_QUERY);
+            int rankPattern = plan.indexOf("urn:rank");
+            assertTrue(plan, rankPattern >= 0 && plan.indexOf("sequences#nextValue") > rankPattern);
+        }
+    }
+
+    @Test
+    public void testUnchangedStateIsNotPersisted() {
+        runCreate(null, 5L);
+        long persistCount = getStat("persistCount");
+        long fingerprintsKept = getStat("fingerprintsKept");
+        for (int i = 0; i < 10; i++) {
+            try (RepositoryConnection connection = getRepository().getConnection()) {
+                connection.begin();
+                prepareSequences(connection);
+                assertEquals(0, getCurrentValue(connection, "urn:myseq1"));
+                connection.commit();
+            }
+        }
+        assertEquals(persistCount, getStat("persistCount"));
+        assertEquals(fingerprintsKept, getStat("fingerprintsKept"));
+
+        runUseTest(1, 5, true);
+        assertEquals(persistCount + 1, getStat("persistCount"));
+    }
+
+    @Test
+    public void testPrefixOperations() {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            for (int i = 0; i < 3; i++) {
+                createSequence(connection, "urn:tenant1:seq" + i, 10L);
+                createSequence(connection, "urn:tenant2:seq" + i, 20L);
+            }
+            connection.commit();
+        }
+        assertEquals(3, listSequences("urn:tenant1:").size());
+        assertEquals(6, listSequences(null).size());
+        assertEquals(19L, (long) listSequences("urn:tenant2:").get("urn:tenant2:seq1"));
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate("insert data {"
+                    + " <urn:tenant1:> <http://www.ontotext.com/plugins/sequences#resetPrefix> 100 ."
+                    + " <urn:tenant2:> <http://www.ontotext.com/plugins/sequences#dropPrefix> [] }").execute();
+            connection.commit();
+        }
+        restartRepository();
+
+        Map<String, Long> sequences = listSequences(null);
+        assertEquals(3, sequences.size());
+        assertEquals(99L, (long) sequences.get("urn:tenant1:seq2"));
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            assertEquals(100, getNextValue(connection, "urn:tenant1:seq2"));
+            connection.commit();
+        }
+    }
+
+    @Test
+    public void testAutoCreate() {
+        System.setProperty("graphdb.sequences.autoCreate", "urn:doc:=1");
+        try {
+            restartRepository();
+            try (RepositoryConnection connection = getRepository().getConnection()) {
+                connection.begin();
+                prepareSequences(connection);
+                assertEquals(1, getNextValue(connection, "urn:doc:1"));
+                assertEquals(2, getNextValue(connection, "urn:doc:1"));
+                assertEquals(1, getNextValue(connection, "urn:doc:2"));
+                try {
+                    getNextValue(connection, "urn:other");
+                    fail("Must fail with exception");
+                } catch (Exception e) {
+                    MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("No such sequence: urn:other"));
+                }
+                connection.commit();
+            }
+
+            restartRepository();
+            try (RepositoryConnection connection = getRepository().getConnection()) {
+                connection.begin();
+                prepareSequences(connection);
+                assertEquals(3, getNextValue(connection, "urn:doc:1"));
+                connection.commit();
+            }
+        } finally {
+            System.clearProperty("graphdb.sequences.autoCreate");
+        }
+    }
+
+    @Test
+    public void testIriMinting() {
+        runCreate(null, null);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(
+                    "insert data { <urn:myseq1> <http://www.ontotext.com/plugins/sequences#iriPrefix> \"urn:doc:\" }")
+                    .execute();
+            connection.commit();
+        }
+        restartRepository();
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            prepareSequences(connection);
+            try (TupleQueryResult tqr = connection.prepareTupleQuery("select ?id {"
+                    + " <urn:myseq1> <http://www.ontotext.com/plugins/sequences#nextIRI> ?id }").evaluate()) {
+                assertEquals("urn:doc:1", tqr.next().getValue("id").stringValue());
+            }
+            List<String> ids = new ArrayList<>();
+            try (TupleQueryResult tqr = connection.prepareTupleQuery("select ?id { graph <urn:myseq1> {"
+                    + " 3 <http://www.ontotext.com/plugins/sequences#nextIRIs> ?id } }").evaluate()) {
+                tqr.forEach(bindings -> ids.add(bindings.getValue("id").stringValue()));
+            }
+            assertEquals(Arrays.asList("urn:doc:2", "urn:doc:3", "urn:doc:4"), ids);
+            assertEquals(5, getNextValue(connection, "urn:myseq1"));
+            connection.commit();
+        }
+    }
+
+    @Test
+    public void testExportImport() {
+        runCreate(null, 10L);
+        runUseTest(1, 10, true);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(
+                    "insert data { [] <http://www.ontotext.com/plugins/sequences#export> \"sequences.tsv\" }")
+                    .execute();
+            connection.commit();
+        }
+        dropSequence("urn:myseq1");
+        resetSequence("urn:myseq2", 100L);
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(
+                    "insert data { [] <http://www.ontotext.com/plugins/sequences#import> \"sequences.tsv\" }")
+                    .execute();
+            connection.commit();
+        }
+        restartRepository();
+        runUseTest(4, 12, true);
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(
+                    "insert data { [] <http://www.ontotext.com/plugins/sequences#export> \"../state.bin\" }")
+                    .execute();
+            fail("Must fail with exception");
+        } catch (Exception e) {
+            MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("is not a file in"));
+        }
+    }
+
+    @Test
+    public void testImportIsRejectedInCluster() {
+        System.setProperty("graphdb.sequences.cluster", "true");
+        System.setProperty("graphdb.sequences.nodeId", "1");
+        try {
+            restartRepository();
+            try (RepositoryConnection connection = getRepository().getConnection()) {
+                connection.begin();
+                connection.prepareUpdate(
+                        "insert data { [] <http://www.ontotext.com/plugins/sequences#import> \"sequences.tsv\" }")
+                        .execute();
+                fail("Must fail with exception");
+            } catch (Exception e) {
+                MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("not supported in a cluster"));
+            }
+        } finally {
+            System.clearProperty("graphdb.sequences.cluster");
+            System.clearProperty("graphdb.sequences.nodeId");
+        }
+    }
+
+    @Test
+    public void testStripedSequenceIsRejectedInCluster() {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(
+                    "insert data { <urn:token> <http://www.ontotext.com/plugins/sequences#createStriped> 100 }")
+                    .execute();
+            connection.commit();
+        }
+
+        System.setProperty("graphdb.sequences.cluster", "true");
+        System.setProperty("graphdb.sequences.nodeId", "1");
+        try {
+            restartRepository();
+            try (RepositoryConnection connection = getRepository().getConnection()) {
+                getNextValue(connection, "urn:token");
+                fail("Must fail with exception");
+            } catch (Exception e) {
+                MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("not supported in a cluster"));
+            }
+            try (RepositoryConnection connection = getRepository().getConnection()) {
+                connection.begin();
+                connection.prepareUpdate(
+                        "insert data { <urn:other> <http://www.ontotext.com/plugins/sequences#createStriped> 1 }")
+                        .execute();
+                fail("Must fail with exception");
+            } catch (Exception e) {
+                MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("not supported in a cluster"));
+            }
+        } finally {
+            System.clearProperty("graphdb.sequences.cluster");
+            System.clearProperty("graphdb.sequences.nodeId");
+        }
+    }
+
+    @Test
+    public void testStripedSequence() throws InterruptedException, ExecutionException {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(
+                    "insert data { <urn:token> <http://www.ontotext.com/plugins/sequences#createStriped> 100 }")
+                    .execute();
+            connection.commit();
+        }
+
+        // Read-only queries on several threads, without seq:prepare and a transaction
+        long nextValueCalls = getStat("nextValueCalls");
+        long nextValueCount = getStat("nextValueCount");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Set<Long> values = new HashSet<>();
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    List<Long> threadValues = new ArrayList<>();
+                    try (RepositoryConnection connection = getRepository().getConnection()) {
+                        for (int j = 0; j < 100; j++) {
+                            threadValues.add(getNextValue(connection, "urn:token"));
+                        }
+                    }
+                    return threadValues;
+                }));
+            }
+            for (Future<List<Long>> future : futures) {
+                for (long value : future.get()) {
+                    assertTrue("Duplicate value " + value, values.add(value));
+                    assertTrue(value >= 100);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(nextValueCalls + 400, getStat("nextValueCalls"));
+        assertEquals(nextValueCount + 400, getStat("nextValueCount"));
+
+        long highWaterMark;
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            highWaterMark = getCurrentValue(connection, "urn:token");
+        }
+        assertTrue(highWaterMark >= Collections.max(values));
+        restartRepository();
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            assertEquals(highWaterMark + 1, getNextValue(connection, "urn:token"));
+            connection.begin();
+            try {
+                resetSequence(connection, "urn:token", 1L);
+                fail("Must fail with exception");
+            } catch (Exception e) {
+                MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("cannot be reset"));
+            }
+            connection.rollback();
+        }
+
+        dropSequence("urn:token");
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            getNextValue(connection, "urn:token");
+            fail("Must fail with exception");
+        } catch (Exception e) {
+            MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("must be prepared"));
+        }
+    }
+
+    @Test
+    public void testTimeBasedSequence() {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            connection.prepareUpdate(
+                    "insert data { <urn:ids> <http://www.ontotext.com/plugins/sequences#createTimeBased> [] }")
+                    .execute();
+            connection.commit();
+        }
+
+        long started = System.currentTimeMillis();
+        long lastId;
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            long firstId = getNextValue(connection, "urn:ids");
+            // The timestamp in the first 42 bits is in milliseconds since 2020-01-01T00:00:00Z
+            long timestamp = (firstId >>> 22) + 1577836800000L;
+            assertTrue(Math.abs(timestamp - started) < 60_000);
+            lastId = firstId;
+            for (int i = 0; i < 100; i++) {
+                long id = getNextValue(connection, "urn:ids");
+                assertTrue("The IDs must increase", id > lastId);
+                lastId = id;
+            }
+            assertTrue(getCurrentValue(connection, "urn:ids") >= lastId);
+        }
+
+        restartRepository();
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            assertTrue(getNextValue(connection, "urn:ids") > lastId);
+        }
+    }
+
     @Test
     public void testConcurrentUseCommit() throws InterruptedException, ExecutionException {
         runCreate(null, 70L);
@@ -196,6 +760,51 @@ public class TestSequencesPlugin extends SingleRepositoryFunctionalTest {
         }
     }
 
+    private Map<String, Long> listSequences(String prefix) {
+        String pattern = "?sequence <http://www.ontotext.com/plugins/sequences#list> ?value";
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            Map<String, Long> sequences = new HashMap<>();
+            try (TupleQueryResult tqr = connection.prepareTupleQuery("select ?sequence ?value {"
+                    + (prefix == null ? pattern : "graph <" + prefix + "> { " + pattern + " }") + " }").evaluate()) {
+                tqr.forEach(bindings -> sequences.put(bindings.getValue("sequence").stringValue(),
+                        ((Literal) bindings.getValue("value")).longValue()));
+            }
+            return sequences;
+        }
+    }
+
+    private void insertRankedDocuments() {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            StringBuilder data = new StringBuilder("insert data {");
+            for (int i = 0; i < 100; i++) {
+                data.append(" <urn:doc:").append(i).append("> a <urn:Doc> ; <urn:rank> ").append(i).append(" .");
+            }
+            connection.prepareUpdate(data.append(" }").toString()).execute();
+            connection.commit();
+        }
+    }
+
+    /**
+     * Returns the plan of a query as reported by GraphDB for queries that read from the explain graph.
+     */
+    private String explainQuery(RepositoryConnection connection, String query) {
+        try (TupleQueryResult tqr = connection.prepareTupleQuery(
+                query.replaceFirst("\\{", "from <http://www.ontotext.com/explain> {")).evaluate()) {
+            return tqr.next().getValue("plan").stringValue();
+        }
+    }
+
+    private long getStat(String metric) {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            try (TupleQueryResult tqr = connection.prepareTupleQuery("select ?value {" +
+                    "<http://www.ontotext.com/plugins/sequences#" + metric + "> " +
+                    "<http://www.ontotext.com/plugins/sequences#stats> ?value }").evaluate()) {
+                return ((Literal) tqr.next().getValue("value")).longValue();
+            }
+        }
+    }
+
     private void prepareSequences(RepositoryConnection connection) {
         connection.prepareUpdate("insert data { [] <http://www.ontotext.com/plugins/sequences#prepare> [] }")
                 .execute();
@@ -0,0 +1,300 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many concurrent clients against an embedded repository that is restarted from time to time. The clients obtain
+ * values in transactions that are committed or rolled back, read committed values and create and drop sequences of
+ * their own. The test checks that every committed value is unique and greater than the values committed before it and
+ * that no committed value is lost and that every restart recovers the state of the fingerprint it was stored under,
+ * and logs the sustained throughput and commit latency.
+ *
+ * The test is slow and runs only with -Dgraphdb.sequences.stress=true, e.g. with the stress profile:
+ * mvn -Pstress test [-Dgraphdb.sequences.stress.clients=16] [-Dgraphdb.sequences.stress.seconds=300]
+ */
+public class TestSequencesStress extends SequencesFunctionalTestBase {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestSequencesStress.class);
+
+    private static final String NS = "http://www.ontotext.com/plugins/sequences#";
+
+    private static final int SEQUENCES = 16;
+    // The first sequences are cached, which skips the values of rolled back transactions
+    private static final int CACHED_SEQUENCES = 4;
+    private static final int CACHE_SIZE = 10;
+    private static final int MAX_VALUES_PER_TRANSACTION = 5;
+    private static final int ROLLBACK_PERCENT = 20;
+
+    private static final int CLIENTS = Integer.getInteger("graphdb.sequences.stress.clients", 8);
+    private static final int SECONDS = Integer.getInteger("graphdb.sequences.stress.seconds", 60);
+    private static final int RESTARTS = Integer.getInteger("graphdb.sequences.stress.restarts", 3);
+
+    // Clients run their operations under the read lock, restarts take the write lock
+    private final ReadWriteLock restartLock = new ReentrantReadWriteLock(true);
+    private final AtomicReference<Throwable> clientError = new AtomicReference<>();
+
+    // The values committed by all clients and the greatest of them, per sequence
+    private final List<Set<Long>> committedValues = new ArrayList<>();
+    private final AtomicLong[] maxCommittedValues = new AtomicLong[SEQUENCES];
+
+    @Test
+    public void testConcurrentClients() throws InterruptedException {
+        Assume.assumeTrue("Stress test not enabled", Boolean.getBoolean("graphdb.sequences.stress"));
+
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            for (int i = 0; i < SEQUENCES; i++) {
+                update(connection, "<" + sequenceIri(i) + "> <" + NS + "create> 1");
+                if (i < CACHED_SEQUENCES) {
+                    update(connection, "<" + sequenceIri(i) + "> <" + NS + "cache> " + CACHE_SIZE);
+                }
+                committedValues.add(ConcurrentHashMap.newKeySet());
+                maxCommittedValues[i] = new AtomicLong();
+            }
+            connection.commit();
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        ClientStats[] stats = new ClientStats[CLIENTS];
+        Thread[] clients = new Thread[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            int client = i;
+            stats[i] = new ClientStats();
+            clients[i] = new Thread(() -> {
+                try {
+                    runClient(client, deadline, stats[client]);
+                } catch (Exception | Error e) {
+                    clientError.compareAndSet(null, e);
+                }
+            }, "stress-client-" + i);
+            clients[i].setDaemon(true);
+            clients[i].start();
+        }
+
+        for (int i = 1; i <= RESTARTS && clientError.get() == null; i++) {
+            TimeUnit.NANOSECONDS.sleep(start + (deadline - start) * i / (RESTARTS + 1) - System.nanoTime());
+            restartLock.writeLock().lock();
+            try {
+                restartAndVerifyRecovery();
+            } finally {
+                restartLock.writeLock().unlock();
+            }
+        }
+
+        for (Thread client : clients) {
+            client.join(TimeUnit.SECONDS.toMillis(SECONDS) + 60_000);
+            assertFalse("Client must finish within the allotted time", client.isAlive());
+        }
+        assertNull(clientError.get());
+        long elapsed = System.nanoTime() - start;
+
+        verifyCommittedValues();
+        restartAndVerifyRecovery();
+        assertTrue(getStat("fingerprintsKept") > 0);
+
+        report(stats, elapsed);
+    }
+
+    private void runClient(int client, long deadline, ClientStats stats) {
+        Random random = ThreadLocalRandom.current();
+        int ownSequences = 0;
+        while (System.nanoTime() < deadline && clientError.get() == null) {
+            restartLock.readLock().lock();
+            try {
+                int operation = random.nextInt(100);
+                if (operation < 75) {
+                    obtainValues(random, stats);
+                } else if (operation < 95) {
+                    readCommittedValue(random.nextInt(SEQUENCES));
+                } else {
+                    createAndDrop("urn:stress:client" + client + "-" + ownSequences++, random);
+                }
+            } finally {
+                restartLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Obtains a few values from a shared sequence and commits or rolls back.
+     */
+    private void obtainValues(Random random, ClientStats stats) {
+        int sequence = random.nextInt(SEQUENCES);
+        String iri = sequenceIri(sequence);
+        long[] values = new long[1 + random.nextInt(MAX_VALUES_PER_TRANSACTION)];
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            update(connection, "[] <" + NS + "prepare> []");
+            for (int i = 0; i < values.length; i++) {
+                values[i] = getValue(connection, iri, "nextValue");
+                assertTrue(iri + " must increase within a transaction", i == 0 || values[i] > values[i - 1]);
+            }
+            assertEquals(values[values.length - 1], getValue(connection, iri, "currentValue"));
+            // Transactions that use the same sequence do not overlap, so all committed values are known
+            assertTrue(iri + " must increase across transactions",
+                    values[0] > maxCommittedValues[sequence].get());
+
+            if (random.nextInt(100) < ROLLBACK_PERCENT) {
+                connection.rollback();
+                return;
+            }
+            long start = System.nanoTime();
+            connection.commit();
+            stats.commitNanos.add(System.nanoTime() - start);
+        }
+
+        for (long value : values) {
+            assertTrue(iri + " issued " + value + " twice", committedValues.get(sequence).add(value));
+        }
+        maxCommittedValues[sequence].accumulateAndGet(values[values.length - 1], Math::max);
+        stats.values += values.length;
+    }
+
+    private void readCommittedValue(int sequence) {
+        long committedBefore = maxCommittedValues[sequence].get();
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            long value = getValue(connection, sequenceIri(sequence), "currentValue");
+            assertTrue(sequenceIri(sequence) + " must not go back to " + value, value >= committedBefore);
+        }
+    }
+
+    private void createAndDrop(String iri, Random random) {
+        long startValue = 1 + random.nextInt(1000);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            connection.begin();
+            update(connection, "<" + iri + "> <" + NS + "create> " + startValue);
+            connection.commit();
+
+            connection.begin();
+            update(connection, "[] <" + NS + "prepare> []");
+            assertEquals(startValue, getValue(connection, iri, "nextValue"));
+            connection.commit();
+
+            connection.begin();
+            update(connection, "<" + iri + "> <" + NS + "drop> []");
+            connection.commit();
+        }
+    }
+
+    /**
+     * Restarts the repository while no client runs and checks that the state is recovered to the fingerprint it was
+     * stored under, with the values the sequences had under that fingerprint.
+     */
+    private void restartAndVerifyRecovery() {
+        long fingerprint = getStat("fingerprint");
+        List<Long> values = currentValues();
+        restartRepository();
+        assertEquals("The state must be recovered to the fingerprint it was stored under", fingerprint,
+                getStat("fingerprint"));
+        assertEquals("The values must match the recovered fingerprint", values, currentValues());
+        verifyCommittedValues();
+    }
+
+    private List<Long> currentValues() {
+        List<Long> values = new ArrayList<>(SEQUENCES);
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            for (int i = 0; i < SEQUENCES; i++) {
+                values.add(getValue(connection, sequenceIri(i), "currentValue"));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Checks that the committed value of every shared sequence accounts for all values committed by the clients. The
+     * values of rolled back transactions are issued again by uncached sequences, so their committed values have no
+     * gaps.
+     */
+    private void verifyCommittedValues() {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            for (int i = 0; i < SEQUENCES; i++) {
+                long value = getValue(connection, sequenceIri(i), "currentValue");
+                long maxCommittedValue = maxCommittedValues[i].get();
+                if (i < CACHED_SEQUENCES) {
+                    assertTrue(sequenceIri(i) + " lost committed values", value >= maxCommittedValue);
+                } else {
+                    assertEquals(sequenceIri(i) + " lost committed values", maxCommittedValue, value);
+                    assertEquals(sequenceIri(i) + " has gaps", maxCommittedValue, committedValues.get(i).size());
+                }
+            }
+        }
+    }
+
+    private void report(ClientStats[] stats, long elapsedNanos) {
+        long values = 0;
+        int commits = 0;
+        for (ClientStats clientStats : stats) {
+            values += clientStats.values;
+            commits += clientStats.commitNanos.size();
+        }
+        long[] commitNanos = new long[commits];
+        int i = 0;
+        for (ClientStats clientStats : stats) {
+            for (long nanos : clientStats.commitNanos) {
+                commitNanos[i++] = nanos;
+            }
+        }
+        Arrays.sort(commitNanos);
+        long p99Micros = commitNanos.length == 0 ? 0 : commitNanos[(int) (commitNanos.length * 0.99)] / 1000;
+
+        LOGGER.info("{} clients, {} s, {} restarts: {} values in {} commits, {} values/s, "
+                        + "commit p99 {} us (client), {} us (plugin)", CLIENTS, SECONDS, RESTARTS, values, commits,
+                Math.round(values * 1e9 / elapsedNanos), p99Micros, getStat("commitP99Micros"));
+    }
+
+    private long getValue(RepositoryConnection connection, String sequenceIri, String predicate) {
+        try (TupleQueryResult tqr = connection.prepareTupleQuery("select ?value {" +
+                "<" + sequenceIri + "> <" + NS + predicate + "> ?value }").evaluate()) {
+            assertTrue(tqr.hasNext());
+            return ((Literal) tqr.next().getValue("value")).longValue();
+        }
+    }
+
+    private long getStat(String metric) {
+        try (RepositoryConnection connection = getRepository().getConnection()) {
+            return getValue(connection, NS + metric, "stats");
+        }
+    }
+
+    private static void update(RepositoryConnection connection, String statement) {
+        connection.prepareUpdate("insert data { " + statement + " }").execute();
+    }
+
+    private static String sequenceIri(int sequence) {
+        return "urn:stress:seq" + sequence;
+    }
+
+    private void restartRepository() {
+        getRepository().shutDown();
+        getRepository().init();
+    }
+
+    private static class ClientStats {
+        final List<Long> commitNanos = new ArrayList<>();
+        long values;
+    }
+}
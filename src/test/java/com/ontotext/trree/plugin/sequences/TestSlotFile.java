@@ -0,0 +1,190 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.ontotext.trree.plugin.sequences.SequenceValues.sequenceValues;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that {@link SlotFile} persists commits in place, keeps the history of the states, recovers from an
+ * interrupted commit and detects a truncated file.
+ */
+public class TestSlotFile {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Path directory = tmpFolder.getRoot().toPath();
+        assertFalse(SlotFile.exists(directory));
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.write(store(), this::iri, history(2, Collections.singletonMap("urn:a", null)));
+        }
+        assertTrue(SlotFile.exists(directory));
+
+        Map<String, Long> sequences = new HashMap<>();
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            assertFalse(slotFile.read(sequences, fingerprintedSequences));
+        }
+        assertEquals(sequenceValues("urn:a", 10L, "urn:b", -1L), sequences);
+        assertEquals(Arrays.asList(2L, 0L), fingerprintedSequences.getFingerprints());
+    }
+
+    @Test
+    public void testCommitInPlace() throws IOException {
+        Path directory = tmpFolder.getRoot().toPath();
+        FingerprintedSequences history = history(2, Collections.singletonMap("urn:a", null));
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.write(store(), this::iri, history);
+            long size = Files.size(directory.resolve("slots-1.bin"));
+
+            // Change a, drop b and create c
+            commit(slotFile, history, 2, 3, sequenceValues("urn:a", 11L, "urn:b", null, "urn:c", 5L),
+                    sequenceValues("urn:a", 10L, "urn:b", -1L, "urn:c", null));
+            commit(slotFile, history, 3, 4, Collections.singletonMap("urn:c", 6L),
+                    Collections.singletonMap("urn:c", 5L));
+            assertEquals(size, Files.size(directory.resolve("slots-1.bin")));
+        }
+
+        Map<String, Long> sequences = new HashMap<>();
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            assertFalse(slotFile.read(sequences, fingerprintedSequences));
+        }
+        assertEquals(sequenceValues("urn:a", 11L, "urn:c", 6L), sequences);
+        assertEquals(Arrays.asList(4L, 3L, 2L, 0L), fingerprintedSequences.getFingerprints());
+        assertTrue(fingerprintedSequences.revert(2, sequences));
+        assertEquals(sequenceValues("urn:a", 10L, "urn:b", -1L), sequences);
+    }
+
+    @Test
+    public void testUndoLastCommit() throws IOException {
+        Path directory = tmpFolder.getRoot().toPath();
+        FingerprintedSequences history = history(2, Collections.singletonMap("urn:a", null));
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.write(store(), this::iri, history);
+            commit(slotFile, history, 2, 3, sequenceValues("urn:a", 11L, "urn:b", null),
+                    sequenceValues("urn:a", 10L, "urn:b", -1L));
+            slotFile.commitCompleted();
+            commit(slotFile, history, 3, 4, sequenceValues("urn:a", 12L, "urn:b", 1L),
+                    sequenceValues("urn:a", 11L, "urn:b", null));
+            slotFile.undoLastCommit();
+            history.revert(3, null);
+            // Undoing again does nothing
+            slotFile.undoLastCommit();
+        }
+
+        Map<String, Long> sequences = new HashMap<>();
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            assertFalse(slotFile.read(sequences, fingerprintedSequences));
+        }
+        assertEquals(Collections.singletonMap("urn:a", 11L), sequences);
+        assertEquals(Arrays.asList(3L, 2L, 0L), fingerprintedSequences.getFingerprints());
+    }
+
+    @Test
+    public void testInterruptedCommit() throws IOException {
+        Path directory = tmpFolder.getRoot().toPath();
+        FingerprintedSequences history = history(2, Collections.singletonMap("urn:a", null));
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.write(store(), this::iri, history);
+            commit(slotFile, history, 2, 3, sequenceValues("urn:a", 11L, "urn:b", null, "urn:c", 5L),
+                    sequenceValues("urn:a", 10L, "urn:b", -1L, "urn:c", null));
+        }
+        // A crash before the fingerprint was written leaves the fingerprint of the previous state in the header
+        try (FileChannel channel = FileChannel.open(directory.resolve("slots-1.bin"), StandardOpenOption.WRITE)) {
+            channel.write((ByteBuffer) ByteBuffer.allocate(8).putLong(2).flip(), 8);
+        }
+
+        Map<String, Long> sequences = new HashMap<>();
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            assertTrue("The interrupted commit must be undone", slotFile.read(sequences, fingerprintedSequences));
+        }
+        assertEquals(sequenceValues("urn:a", 10L, "urn:b", -1L), sequences);
+        assertEquals(Arrays.asList(2L, 0L), fingerprintedSequences.getFingerprints());
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        Path directory = tmpFolder.getRoot().toPath();
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.write(store(), this::iri, history(2, Collections.singletonMap("urn:a", null)));
+        }
+        Path path = directory.resolve("slots-1.bin");
+        Files.write(path, Arrays.copyOf(Files.readAllBytes(path), 30));
+
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.read(new HashMap<>(), new FingerprintedSequences());
+            fail("Must fail with exception");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testNewGeneration() throws IOException {
+        Path directory = tmpFolder.getRoot().toPath();
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.write(store(), this::iri, history(2, Collections.singletonMap("urn:a", null)));
+            // Leftovers of an incomplete generation
+            Files.write(directory.resolve("slots-5.idx"), new byte[10]);
+            slotFile.write(store(), this::iri, history(2, Collections.singletonMap("urn:a", null)));
+        }
+        assertFalse(Files.exists(directory.resolve("slots-1.bin")));
+        assertFalse(Files.exists(directory.resolve("slots-5.idx")));
+        assertTrue(Files.exists(directory.resolve("slots-2.bin")));
+
+        Map<String, Long> sequences = new HashMap<>();
+        try (SlotFile slotFile = new SlotFile(directory)) {
+            slotFile.read(sequences, new FingerprintedSequences());
+        }
+        assertEquals(sequenceValues("urn:a", 10L, "urn:b", -1L), sequences);
+
+        SlotFile.delete(directory);
+        assertFalse(SlotFile.exists(directory));
+    }
+
+    private static void commit(SlotFile slotFile, FingerprintedSequences history, long previousFingerprint,
+                               long fingerprint, Map<String, Long> changes, Map<String, Long> previousValues)
+            throws IOException {
+        assertEquals(previousFingerprint, history.getFingerprint());
+        history.add(fingerprint, previousValues);
+        slotFile.commit(previousFingerprint, fingerprint, changes, previousValues, history);
+    }
+
+    private static SequenceStore store() {
+        SequenceStore sequences = new SequenceStore();
+        sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        sequences.add(2, Fingerprints.ofIRI("urn:b"), -1);
+        return sequences;
+    }
+
+    private String iri(long id) {
+        return id == 1 ? "urn:a" : "urn:b";
+    }
+
+    private static FingerprintedSequences history(long fingerprint, Map<String, Long> previousValues) {
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        fingerprintedSequences.add(fingerprint, previousValues);
+        return fingerprintedSequences;
+    }
+}
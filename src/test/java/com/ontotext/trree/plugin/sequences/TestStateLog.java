@@ -0,0 +1,73 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.ontotext.trree.plugin.sequences.SequenceValues.sequenceValues;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Verifies that {@link StateLog} replays the appended records and survives a torn record at its end.
+ */
+public class TestStateLog {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        StateLog log = new StateLog(tmpFolder.getRoot().toPath().resolve("state.log"));
+        log.append(0, 1, sequenceValues("urn:a", 10L, "urn:b", 20L));
+        log.append(1, 2, sequenceValues("urn:a", 11L, "urn:b", null));
+
+        List<Long> fingerprints = new ArrayList<>();
+        List<Map<String, Long>> replayedChanges = new ArrayList<>();
+        log.replay((previousFingerprint, fingerprint, changes) -> {
+            assertEquals(fingerprints.isEmpty() ? 0 : fingerprints.get(fingerprints.size() - 1),
+                    previousFingerprint);
+            fingerprints.add(fingerprint);
+            replayedChanges.add(changes);
+        });
+
+        assertEquals(Arrays.asList(1L, 2L), fingerprints);
+        assertEquals(sequenceValues("urn:a", 10L, "urn:b", 20L), replayedChanges.get(0));
+        assertEquals(Long.valueOf(11), replayedChanges.get(1).get("urn:a"));
+        assertNull("Dropped sequences must be replayed as null values", replayedChanges.get(1).get("urn:b"));
+
+        log.truncate();
+        assertEquals(0, log.size());
+    }
+
+    @Test
+    public void testTornRecordIsDiscarded() throws IOException {
+        Path path = tmpFolder.getRoot().toPath().resolve("state.log");
+        StateLog log = new StateLog(path);
+        log.append(0, 1, sequenceValues("urn:a", 10L));
+        long validSize = log.size();
+        try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.APPEND)) {
+            // Length prefix of a record whose payload never made it to disk
+            out.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        }
+
+        List<Long> fingerprints = new ArrayList<>();
+        log.replay((previousFingerprint, fingerprint, changes) -> fingerprints.add(fingerprint));
+        assertEquals(Arrays.asList(1L), fingerprints);
+        assertEquals("The torn record must be truncated", validSize, log.size());
+
+        log.append(1, 2, sequenceValues("urn:a", 11L));
+        fingerprints.clear();
+        log.replay((previousFingerprint, fingerprint, changes) -> fingerprints.add(fingerprint));
+        assertEquals(Arrays.asList(1L, 2L), fingerprints);
+    }
+}
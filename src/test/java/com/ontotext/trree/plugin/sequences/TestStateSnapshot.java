@@ -0,0 +1,231 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.hamcrest.CoreMatchers;
+import org.hamcrest.MatcherAssert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+import static com.ontotext.trree.plugin.sequences.SequenceValues.sequenceValues;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that {@link StateSnapshot} restores what it wrote, rewrites only the requested shards and detects corrupted
+ * snapshots.
+ */
+public class TestStateSnapshot {
+    private static final int SHARDS = 4;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Path path = writeSnapshot();
+        assertFalse("The temporary file must be renamed", Files.exists(path.resolveSibling("state.bin.tmp")));
+
+        Map<String, Long> storedSequences = new HashMap<>();
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        assertEquals(SHARDS, StateSnapshot.read(path, storedSequences, fingerprintedSequences));
+
+        assertEquals(sequenceValues("urn:a", 10L, "urn:b", -1L, "urn:\u00e9", Long.MAX_VALUE), storedSequences);
+        assertEquals(Arrays.asList(3L, 2L, 1L, 0L), fingerprintedSequences.getFingerprints());
+
+        assertTrue(fingerprintedSequences.revert(1, storedSequences));
+        assertEquals(Collections.singletonMap("urn:a", 7L), storedSequences);
+    }
+
+    @Test
+    public void testCorruptedSnapshot() throws IOException {
+        Path path = writeSnapshot();
+        List<Path> files = new ArrayList<>();
+        files.add(path);
+        files.addAll(StateSnapshot.shardPaths(path));
+
+        for (Path file : files) {
+            byte[] bytes = Files.readAllBytes(file);
+            for (int i = 8; i < bytes.length; i++) {
+                byte[] corrupted = bytes.clone();
+                corrupted[i] ^= 0x10;
+                Files.write(file, corrupted);
+                try {
+                    StateSnapshot.read(path, new HashMap<>(), new FingerprintedSequences());
+                    fail("A corrupted byte at " + i + " of " + file.getFileName() + " must be detected");
+                } catch (IOException e) {
+                    // Expected
+                }
+            }
+
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+            try {
+                StateSnapshot.read(path, new HashMap<>(), new FingerprintedSequences());
+                fail("A truncated " + file.getFileName() + " must be detected");
+            } catch (IOException e) {
+                // Expected
+            }
+            Files.write(file, bytes);
+        }
+
+        Files.delete(files.get(1));
+        try {
+            StateSnapshot.read(path, new HashMap<>(), new FingerprintedSequences());
+            fail("A missing shard must be detected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testWriteDirtyShards() throws IOException {
+        Path path = tmpFolder.getRoot().toPath().resolve("state.bin");
+        SequenceStore sequences = new SequenceStore();
+        for (int i = 0; i < 100; i++) {
+            sequences.add(i + 1, Fingerprints.ofIRI("urn:" + i), i);
+        }
+        LongFunction<String> iriResolver = id -> "urn:" + (id - 1);
+        StateSnapshot.write(path, sequences, iriResolver, new FingerprintedSequences(), SHARDS, null);
+
+        int changedShard = StateSnapshot.shard(Fingerprints.ofIRI("urn:7"), SHARDS);
+        int otherShard = (changedShard + 1) % SHARDS;
+        List<Path> shardPaths = StateSnapshot.shardPaths(path);
+        byte[] otherShardBytes = Files.readAllBytes(shardPaths.get(otherShard));
+        sequences.setValue(sequences.slot(8), 1000);
+        BitSet dirtyShards = new BitSet();
+        dirtyShards.set(changedShard);
+        long bytes = StateSnapshot.write(path, sequences, iriResolver, new FingerprintedSequences(), SHARDS,
+                dirtyShards);
+        List<Path> newShardPaths = StateSnapshot.shardPaths(path);
+        assertEquals(Files.size(path) + Files.size(newShardPaths.get(changedShard)), bytes);
+        assertFalse("A rewritten shard must be deleted", Files.exists(shardPaths.get(changedShard)));
+        assertEquals(shardPaths.get(otherShard), newShardPaths.get(otherShard));
+        assertArrayEquals(otherShardBytes, Files.readAllBytes(newShardPaths.get(otherShard)));
+
+        Map<String, Long> storedSequences = new HashMap<>();
+        StateSnapshot.read(path, storedSequences, new FingerprintedSequences());
+        assertEquals(100, storedSequences.size());
+        assertEquals(Long.valueOf(1000), storedSequences.get("urn:7"));
+        assertEquals(Long.valueOf(8), storedSequences.get("urn:8"));
+    }
+
+    @Test
+    public void testShardOfAnotherState() throws IOException {
+        Path path = writeSnapshot();
+        Path otherPath = tmpFolder.newFolder().toPath().resolve("state.bin");
+        SequenceStore sequences = new SequenceStore();
+        sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        fingerprintedSequences.add(4, Collections.singletonMap("urn:a", null));
+        StateSnapshot.write(otherPath, sequences, id -> "urn:a", fingerprintedSequences, SHARDS, null);
+
+        // An intact shard with the same name, written for another fingerprint
+        Path shardPath = StateSnapshot.shardPaths(path).get(0);
+        Files.copy(StateSnapshot.shardPaths(otherPath).get(0), shardPath, StandardCopyOption.REPLACE_EXISTING);
+        try {
+            StateSnapshot.read(path, new HashMap<>(), new FingerprintedSequences());
+            fail("A shard of another state must be detected");
+        } catch (IOException e) {
+            MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("written for another state"));
+        }
+    }
+
+    @Test
+    public void testChangeShardCount() throws IOException {
+        Path path = writeSnapshot();
+        List<Path> shardPaths = StateSnapshot.shardPaths(path);
+        SequenceStore sequences = new SequenceStore();
+        sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        StateSnapshot.write(path, sequences, id -> "urn:a", new FingerprintedSequences(), 2, null);
+
+        for (Path shardPath : shardPaths) {
+            assertFalse(Files.exists(shardPath));
+        }
+        Map<String, Long> storedSequences = new HashMap<>();
+        assertEquals(2, StateSnapshot.read(path, storedSequences, new FingerprintedSequences()));
+        assertEquals(Collections.singletonMap("urn:a", 10L), storedSequences);
+        List<Path> newShardPaths = StateSnapshot.shardPaths(path);
+        assertEquals(2, newShardPaths.size());
+        assertEquals(Files.size(path) + Files.size(newShardPaths.get(0)) + Files.size(newShardPaths.get(1)),
+                StateSnapshot.size(path));
+    }
+
+    @Test
+    public void testInterruptedWriteKeepsPreviousSnapshot() throws IOException {
+        Path path = tmpFolder.getRoot().toPath().resolve("state.bin");
+        SequenceStore sequences = new SequenceStore();
+        int slot = sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        sequences.add(2, Fingerprints.ofIRI("urn:b"), 20);
+        LongFunction<String> iriResolver = id -> id == 1 ? "urn:a" : "urn:b";
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        fingerprintedSequences.add(1, sequenceValues("urn:a", null, "urn:b", null));
+        StateSnapshot.write(path, sequences, iriResolver, fingerprintedSequences, SHARDS, null);
+        List<Path> shardPaths = StateSnapshot.shardPaths(path);
+
+        // A change that is in the state log is written to a new snapshot, which fails after writing the shards
+        // since its main file cannot replace the previous one
+        sequences.setValue(slot, 11);
+        fingerprintedSequences.add(2, Collections.singletonMap("urn:a", 10L));
+        BitSet dirtyShards = new BitSet();
+        dirtyShards.set(0, SHARDS);
+        Path tempPath = path.resolveSibling("state.bin.tmp");
+        Files.createDirectory(tempPath);
+        try {
+            StateSnapshot.write(path, sequences, iriResolver, fingerprintedSequences, SHARDS, dirtyShards);
+            fail("Must fail with exception");
+        } catch (IOException e) {
+            // Expected
+        }
+        Files.delete(tempPath);
+        assertEquals(shardPaths, StateSnapshot.shardPaths(path));
+
+        // The change is replayed from the log on top of the previous snapshot, so it can be reverted
+        Map<String, Long> storedSequences = new HashMap<>();
+        FingerprintedSequences restored = new FingerprintedSequences();
+        StateSnapshot.read(path, storedSequences, restored);
+        assertEquals(1, restored.getFingerprint());
+        assertEquals(Long.valueOf(10), storedSequences.get("urn:a"));
+        restored.add(2, Collections.singletonMap("urn:a", storedSequences.put("urn:a", 11L)));
+        assertTrue(restored.revert(1, storedSequences));
+        assertEquals(Long.valueOf(10), storedSequences.get("urn:a"));
+        assertEquals(Long.valueOf(20), storedSequences.get("urn:b"));
+
+        // The next snapshot deletes the shards left over by the interrupted one
+        StateSnapshot.write(path, sequences, iriResolver, fingerprintedSequences, SHARDS, dirtyShards);
+        try (Stream<Path> files = Files.list(tmpFolder.getRoot().toPath())) {
+            assertEquals(SHARDS + 1, files.count());
+        }
+    }
+
+    private Path writeSnapshot() throws IOException {
+        SequenceStore sequences = new SequenceStore();
+        sequences.add(1, Fingerprints.ofIRI("urn:a"), 10);
+        sequences.add(2, Fingerprints.ofIRI("urn:b"), -1);
+        sequences.add(3, Fingerprints.ofIRI("urn:\u00e9"), Long.MAX_VALUE);
+        FingerprintedSequences fingerprintedSequences = new FingerprintedSequences();
+        fingerprintedSequences.add(1, Collections.singletonMap("urn:a", null));
+        fingerprintedSequences.add(2, sequenceValues("urn:a", 7L, "urn:b", null));
+        fingerprintedSequences.add(3, Collections.singletonMap("urn:\u00e9", null));
+
+        Path path = tmpFolder.getRoot().toPath().resolve("state.bin");
+        StateSnapshot.write(path, sequences, id -> id == 1 ? "urn:a" : id == 2 ? "urn:b" : "urn:\u00e9",
+                fingerprintedSequences, SHARDS, null);
+        return path;
+    }
+}
@@ -0,0 +1,171 @@
+package com.ontotext.trree.plugin.sequences;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies that finishing a transaction through {@link TouchedSequences} only visits the sequences the transaction
+ * used, so its cost does not grow with the number of registered sequences.
+ */
+public class TestTouchedSequences {
+    @Test
+    public void testLifecycleVisitsOnlyTouchedSequences() {
+        for (int registered : new int[] {10, 100_000}) {
+            SequenceStore sequences = new SequenceStore();
+            for (int i = 0; i < registered; i++) {
+                int slot = sequences.add(i + 1, i, 100);
+                // Uncommitted change that a visit by rollback() would revert
+                sequences.nextValue(slot);
+            }
+            sequences.commit();
+
+            TouchedSequences touchedSequences = new TouchedSequences(sequences);
+            touchedSequences.touch(sequences.slot(1));
+
+            touchedSequences.rollback();
+            assertTrue(touchedSequences.isEmpty());
+            assertEquals("The touched sequence must be rolled back", 100, sequences.currentValue(sequences.slot(1)));
+            for (int i = 1; i < registered; i++) {
+                assertEquals("Untouched sequences must not be visited", 101,
+                        sequences.currentValue(sequences.slot(i + 1)));
+            }
+        }
+    }
+
+    @Test
+    public void testCommit() {
+        SequenceStore sequences = new SequenceStore();
+        int slot = sequences.add(1, 1, 100);
+        TouchedSequences touchedSequences = new TouchedSequences(sequences);
+        touchedSequences.touch(slot);
+        assertEquals(101, sequences.nextValue(slot));
+
+        touchedSequences.prepare();
+        touchedSequences.commit();
+        assertTrue(touchedSequences.isEmpty());
+
+        // A later rollback restores the committed value
+        sequences.nextValue(slot);
+        touchedSequences.touch(slot);
+        touchedSequences.rollback();
+        assertEquals(101, sequences.currentValue(slot));
+    }
+
+    @Test
+    public void testRollbackUndoesCreateAndDrop() {
+        SequenceStore sequences = new SequenceStore();
+        int a = sequences.add(1, 1, 5);
+        int b = sequences.add(2, 2, 10);
+        SequenceOptions options = new SequenceOptions(10);
+        sequences.setOptions(a, options);
+        sequences.commit();
+        long fingerprint = sequences.fingerprint();
+
+        TouchedSequences touchedSequences = new TouchedSequences(sequences);
+        touchedSequences.increment(a);
+        sequences.nextValue(a);
+        touchedSequences.setOptions(a, null);
+        touchedSequences.drop(a, "urn:a");
+        sequences.remove(a);
+        touchedSequences.create(sequences.add(1, 1, 7), "urn:a");
+        touchedSequences.drop(b, "urn:b");
+        sequences.remove(b);
+        touchedSequences.create(sequences.add(3, 3, 1), "urn:c");
+        assertTrue(touchedSequences.createdOrDropped());
+
+        touchedSequences.rollback();
+        assertTrue(touchedSequences.isEmpty());
+        assertEquals(a, sequences.slot(1));
+        assertEquals(5, sequences.currentValue(a));
+        assertEquals(options, sequences.options(a));
+        assertEquals(b, sequences.slot(2));
+        assertEquals(10, sequences.currentValue(b));
+        assertEquals(SequenceStore.NO_SLOT, sequences.slot(3));
+        assertEquals(2, sequences.size());
+        assertEquals("The fingerprint must match the committed state", fingerprint, sequences.fingerprint());
+    }
+
+    @Test
+    public void testIncrementedSequences() {
+        SequenceStore sequences = new SequenceStore();
+        int a = sequences.add(1, 1, 0);
+        int b = sequences.add(2, 2, 0);
+        TouchedSequences touchedSequences = new TouchedSequences(sequences);
+        for (int i = 0; i < 1000; i++) {
+            touchedSequences.increment(a);
+        }
+        touchedSequences.increment(b);
+        touchedSequences.drop(b, "urn:b");
+        sequences.remove(b);
+
+        assertArrayEquals("Each incremented sequence must be reported once", new int[] {a},
+                touchedSequences.takeIncremented());
+        assertEquals(0, touchedSequences.takeIncremented().length);
+    }
+
+    @Test
+    public void testCollectChanges() {
+        SequenceStore sequences = new SequenceStore();
+        int a = sequences.add(1, 1, 5);
+        int b = sequences.add(2, 2, 10);
+        TouchedSequences touchedSequences = new TouchedSequences(sequences);
+        touchedSequences.touch(a);
+        sequences.nextValue(a);
+        touchedSequences.drop(a, "urn:a");
+        sequences.remove(a);
+        touchedSequences.create(sequences.add(1, 1, 7), "urn:a");
+        touchedSequences.drop(b, "urn:b");
+        sequences.remove(b);
+        touchedSequences.create(sequences.add(3, 3, 1), "urn:c");
+
+        Map<String, Long> changes = new HashMap<>();
+        Map<String, Long> previousValues = new HashMap<>();
+        touchedSequences.collectChanges(id -> id == 1 ? "urn:a" : "urn:c", changes, previousValues);
+
+        Map<String, Long> expectedChanges = new HashMap<>();
+        expectedChanges.put("urn:a", 7L);
+        expectedChanges.put("urn:b", null);
+        expectedChanges.put("urn:c", 1L);
+        assertEquals(expectedChanges, changes);
+
+        Map<String, Long> expectedPreviousValues = new HashMap<>();
+        expectedPreviousValues.put("urn:a", 5L);
+        expectedPreviousValues.put("urn:b", 10L);
+        expectedPreviousValues.put("urn:c", null);
+        assertEquals(expectedPreviousValues, previousValues);
+    }
+
+    @Test
+    public void testCollectChangesSkipsUnchangedSequences() {
+        SequenceStore sequences = new SequenceStore();
+        int a = sequences.add(1, 1, 5);
+        int b = sequences.add(2, 2, 10);
+        TouchedSequences touchedSequences = new TouchedSequences(sequences);
+        // Reset to the same value
+        sequences.setValue(a, 5);
+        touchedSequences.touch(a);
+        // Dropped and created again with the same value
+        touchedSequences.drop(b, "urn:b");
+        sequences.remove(b);
+        touchedSequences.create(sequences.add(2, 2, 10), "urn:b");
+        // Created and dropped
+        int c = sequences.add(3, 3, 1);
+        touchedSequences.create(c, "urn:c");
+        touchedSequences.drop(c, "urn:c");
+        sequences.remove(c);
+        assertFalse(touchedSequences.isEmpty());
+
+        Map<String, Long> changes = new HashMap<>();
+        Map<String, Long> previousValues = new HashMap<>();
+        touchedSequences.collectChanges(id -> id == 1 ? "urn:a" : "urn:b", changes, previousValues);
+        assertTrue(changes.isEmpty());
+        assertTrue(previousValues.isEmpty());
+    }
+}